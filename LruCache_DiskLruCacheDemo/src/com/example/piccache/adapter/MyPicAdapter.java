@@ -15,6 +15,7 @@ import android.widget.GridView;
 import android.widget.ImageView;
 
 import com.example.piccache.utils.ImageCacheUtil;
+import com.example.piccache.utils.ImageLoadScheduler.Priority;
 import com.example.piccachedemo.R;
 
 /**
@@ -38,6 +39,9 @@ public class MyPicAdapter extends BaseAdapter {
 
 	private Context context;
 
+	/** 缩略图的大小，单位是像素 */
+	private int thumbnailSize;
+
 	Handler handler = new Handler() {
 		public void handleMessage(android.os.Message msg) {
 			if (ImageCacheUtil.SUCCESS == msg.what) {
@@ -60,6 +64,8 @@ public class MyPicAdapter extends BaseAdapter {
 		this.imageUrls = imageUrls;
 		this.gridView = gridView;
 		imageCacheUtil = new ImageCacheUtil(context, handler);
+		thumbnailSize = context.getResources().getDimensionPixelSize(
+				R.dimen.image_thumbnail_size);
 	}
 
 	@Override
@@ -74,11 +80,18 @@ public class MyPicAdapter extends BaseAdapter {
 		} else {
 			viewHolder = (ViewHolder) convertView.getTag();
 		}
+		// ImageView被复用来显示另一张图片，之前等的图片已经不需要了
+		if (!imageUrls[position].equals(viewHolder.imageView.getTag())) {
+			imageCacheUtil.cancel(viewHolder.imageView);
+		}
 		// 给ImageView设置一个Tag，保证异步加载图片时不会乱序
 		viewHolder.imageView.setTag(imageUrls[position]);
 		// 暂时放一张空的图片
 		viewHolder.imageView.setImageResource(R.drawable.empty_photo);
-		Bitmap bitmap = imageCacheUtil.getBitmap(imageUrls[position]);
+		// 按缩略图的大小解码，内存缓存能放下更多的图片
+		Bitmap bitmap = imageCacheUtil.getBitmap(imageUrls[position],
+				thumbnailSize, thumbnailSize, viewHolder.imageView,
+				Priority.VISIBLE, null);
 		// 如果bitmap！=null,说明图片是从内存或者是从本地缓存中读取到了
 		if (bitmap != null) {
 			viewHolder.imageView.setImageBitmap(bitmap);
@@ -0,0 +1,265 @@
+package com.example.piccache.utils;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 把图片URL转换成DiskLruCache的key（32位十六进制字符串），用来代替MD5Encoder.encode。
+ *
+ * MD5Encoder每次调用都要MessageDigest.getInstance、getBytes("UTF-8")和StringBuilder，
+ * 这个类给每个线程准备一份可以重复使用的MessageDigest和缓冲区，查表转十六进制，除了返回的String以外不再分配内存。
+ *
+ * 有两种模式：MD5和MD5Encoder算出来的key完全一样，已经缓存的图片还能找到；
+ * MURMUR3_128是非加密的128位哈希，比MD5快很多，但是算出来的key不一样，切换以后原来的缓存就都找不到了。
+ *
+ * 如果只是在内存里用，可以调用derive(String, byte[], int)拿到16个字节的二进制key，不用创建String。
+ */
+public final class CacheKeyDeriver {
+
+	public enum Mode {
+		MD5, MURMUR3_128
+	}
+
+	/** 和MD5Encoder兼容的key */
+	public static final CacheKeyDeriver MD5 = new CacheKeyDeriver(Mode.MD5);
+
+	/** 更快的非加密哈希，key和MD5Encoder不兼容 */
+	public static final CacheKeyDeriver MURMUR3_128 = new CacheKeyDeriver(
+			Mode.MURMUR3_128);
+
+	/** 二进制key的长度，两种模式都是128位 */
+	public static final int KEY_LENGTH = 16;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final Mode mode;
+
+	/** 每个线程一份，避免加锁 */
+	private final ThreadLocal<State> states = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State(mode);
+		}
+	};
+
+	private CacheKeyDeriver(Mode mode) {
+		this.mode = mode;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * 返回string对应的32位小写十六进制key
+	 */
+	public String derive(String string) {
+		State state = states.get();
+		hash(state, string, state.hash, 0);
+		char[] hex = state.hex;
+		for (int i = 0; i < KEY_LENGTH; i++) {
+			int b = state.hash[i] & 0xff;
+			hex[i * 2] = HEX_DIGITS[b >>> 4];
+			hex[i * 2 + 1] = HEX_DIGITS[b & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * 把string对应的16个字节的二进制key写到out的offset位置
+	 */
+	public void derive(String string, byte[] out, int offset) {
+		if (offset < 0 || out.length - offset < KEY_LENGTH) {
+			throw new IndexOutOfBoundsException();
+		}
+		hash(states.get(), string, out, offset);
+	}
+
+	private void hash(State state, String string, byte[] out, int offset) {
+		int length = state.encode(string);
+		if (mode == Mode.MD5) {
+			state.digest.update(state.utf8, 0, length);
+			try {
+				state.digest.digest(out, offset, KEY_LENGTH);
+			} catch (DigestException e) {
+				throw new AssertionError(e);
+			}
+		} else {
+			murmur3(state.utf8, length, out, offset);
+		}
+	}
+
+	/**
+	 * MurmurHash3 x64 128位版本，seed为0
+	 */
+	private static void murmur3(byte[] data, int length, byte[] out, int offset) {
+		long h1 = 0;
+		long h2 = 0;
+		int blocks = length >>> 4;
+		for (int i = 0; i < blocks; i++) {
+			long k1 = getLong(data, i << 4);
+			long k2 = getLong(data, (i << 4) + 8);
+
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		// 剩下不足16个字节的部分
+		int tail = blocks << 4;
+		long k1 = 0;
+		long k2 = 0;
+		switch (length & 15) {
+		case 15:
+			k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+		case 14:
+			k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+		case 13:
+			k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+		case 12:
+			k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+		case 11:
+			k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+		case 10:
+			k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+		case 9:
+			k2 ^= (long) (data[tail + 8] & 0xff);
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+		case 8:
+			k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+		case 7:
+			k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+		case 6:
+			k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+		case 5:
+			k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+		case 4:
+			k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+		case 3:
+			k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+		case 2:
+			k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+		case 1:
+			k1 ^= (long) (data[tail] & 0xff);
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+
+		putLong(out, offset, h1);
+		putLong(out, offset + 8, h2);
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	/** 小端读取8个字节 */
+	private static long getLong(byte[] b, int i) {
+		return (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8
+				| (b[i + 2] & 0xffL) << 16 | (b[i + 3] & 0xffL) << 24
+				| (b[i + 4] & 0xffL) << 32 | (b[i + 5] & 0xffL) << 40
+				| (b[i + 6] & 0xffL) << 48 | (b[i + 7] & 0xffL) << 56;
+	}
+
+	/** 小端写入8个字节，和Guava的Hashing.murmur3_128()输出的字节一致 */
+	private static void putLong(byte[] b, int i, long v) {
+		for (int n = 0; n < 8; n++) {
+			b[i + n] = (byte) v;
+			v >>>= 8;
+		}
+	}
+
+	/**
+	 * 一个线程自己的缓冲区
+	 */
+	private static final class State {
+		final MessageDigest digest;
+		final byte[] hash = new byte[KEY_LENGTH];
+		final char[] hex = new char[KEY_LENGTH * 2];
+		byte[] utf8 = new byte[256];
+
+		State(Mode mode) {
+			if (mode == Mode.MD5) {
+				try {
+					digest = MessageDigest.getInstance("MD5");
+				} catch (NoSuchAlgorithmException e) {
+					throw new AssertionError(e);
+				}
+			} else {
+				digest = null;
+			}
+		}
+
+		/**
+		 * 把string按UTF-8编码到utf8里，返回字节数。单独出现的代理字符编码成'?'，和String.getBytes一样
+		 */
+		int encode(String string) {
+			int length = string.length();
+			if (utf8.length < length * 3) {
+				utf8 = new byte[length * 3];
+			}
+			byte[] out = utf8;
+			int n = 0;
+			for (int i = 0; i < length; i++) {
+				char c = string.charAt(i);
+				if (c < 0x80) {
+					out[n++] = (byte) c;
+				} else if (c < 0x800) {
+					out[n++] = (byte) (0xc0 | (c >> 6));
+					out[n++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length
+						&& Character.isLowSurrogate(string.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c,
+							string.charAt(++i));
+					out[n++] = (byte) (0xf0 | (codePoint >> 18));
+					out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+					out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+					out[n++] = (byte) (0x80 | (codePoint & 0x3f));
+				} else if (c >= Character.MIN_SURROGATE
+						&& c <= Character.MAX_SURROGATE) {
+					out[n++] = '?';
+				} else {
+					out[n++] = (byte) (0xe0 | (c >> 12));
+					out[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					out[n++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.example.piccache.utils;
+
+import libcore.io.DiskLruCache;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 根据缓存目录所在分区的剩余空间来决定DiskLruCache的最大缓存大小。
+ *
+ * 缓存大小 = (分区剩余空间 + 缓存已经占用的空间) * fraction，并且限制在minSize和maxSize之间。
+ * 这样空间充足的手机可以缓存更多的图片，存储快满的手机会自动缩小缓存，多出来的文件由DiskLruCache在后台分批清除。
+ * 剩余空间是会变化的，所以每隔一段时间重新计算一次。
+ */
+public class DiskCacheSizePolicy {
+	private static final String tag = "DiskCacheSizePolicy";
+
+	/** 两次重新计算之间至少间隔的时间 */
+	private static final long EVALUATE_INTERVAL = 60 * 1000;
+
+	private final DiskLruCache diskLruCache;
+	private final float fraction;
+	private final long minSize;
+	private final long maxSize;
+
+	private long lastEvaluated;
+	private boolean evaluated;
+
+	/**
+	 * @param diskLruCache
+	 *            要调整大小的缓存
+	 * @param fraction
+	 *            缓存可以占用的空间比例，0到1之间
+	 * @param minSize
+	 *            缓存最小的大小，存储满了也保留这么多
+	 * @param maxSize
+	 *            缓存最大的大小
+	 */
+	public DiskCacheSizePolicy(DiskLruCache diskLruCache, float fraction,
+			long minSize, long maxSize) {
+		if (fraction <= 0 || fraction > 1) {
+			throw new IllegalArgumentException("fraction must be in (0, 1]");
+		}
+		if (minSize <= 0 || minSize > maxSize) {
+			throw new IllegalArgumentException("0 < minSize <= maxSize");
+		}
+		this.diskLruCache = diskLruCache;
+		this.fraction = fraction;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * 距离上次计算超过了间隔时间才重新计算，可以在每次写入缓存的时候调用
+	 */
+	public synchronized void evaluateIfDue() {
+		long now = SystemClock.elapsedRealtime();
+		if (evaluated && now - lastEvaluated < EVALUATE_INTERVAL) {
+			return;
+		}
+		evaluate();
+	}
+
+	/**
+	 * 马上重新计算缓存大小，并设置给DiskLruCache
+	 */
+	public synchronized void evaluate() {
+		lastEvaluated = SystemClock.elapsedRealtime();
+		evaluated = true;
+		// 缓存自己占用的空间也算可用空间，否则缓存越大算出来的大小越小
+		long available = diskLruCache.getDirectory().getUsableSpace()
+				+ diskLruCache.size();
+		long size = (long) (available * fraction);
+		size = Math.max(minSize, Math.min(maxSize, size));
+		if (size != diskLruCache.maxSize()) {
+			Log.i(tag, "磁盘缓存大小调整为" + size);
+			diskLruCache.setMaxSize(size);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.example.piccache.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 下载图片用的网络接口。ImageCacheUtil只通过这个接口访问网络，默认的实现是HttpFetcher，
+ * 测试的时候可以换成连接本地服务器的实现，或者统计请求次数的实现。
+ */
+public interface Fetcher {
+
+	/**
+	 * 创建一个请求，调用execute()才会真正访问网络
+	 */
+	Call newCall(String url);
+
+	/**
+	 * 一次请求。只能执行一次
+	 */
+	interface Call {
+		/**
+		 * 设置请求头，要在execute()之前调用
+		 */
+		void setHeader(String name, String value);
+
+		/**
+		 * 发送请求，等到收到响应头以后返回。返回的Response用完以后一定要关闭
+		 *
+		 * @throws IOException
+		 *             网络出错，或者请求被取消了
+		 */
+		Response execute() throws IOException;
+
+		/**
+		 * 取消请求，可以在其他线程调用。正在进行的连接或读取会马上出错返回
+		 */
+		void cancel();
+	}
+
+	/**
+	 * 服务器的响应
+	 */
+	interface Response extends Closeable {
+		/** HTTP状态码 */
+		int getCode();
+
+		/** 响应头，没有时返回null */
+		String getHeader(String name);
+
+		/** 响应体的长度，不知道时返回-1 */
+		long getContentLength();
+
+		/** 响应体 */
+		InputStream getBody() throws IOException;
+
+		/**
+		 * 关闭响应，释放连接。没有读完的响应体会被丢弃
+		 */
+		@Override
+		void close();
+	}
+}
@@ -0,0 +1,294 @@
+package com.example.piccache.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetcher的默认实现，基于HttpURLConnection。
+ *
+ * HttpURLConnection自己有一个keep-alive连接池，但是只有响应体被读完并且关闭了，连接才会放回池中；
+ * 调用disconnect()或者没有关闭输入流，连接就会被关掉或者泄漏。这个类保证每个响应最后都被读完并关闭，
+ * 只有取消请求时才disconnect()。
+ *
+ * 同一个主机同时最多maxConnectionsPerHost个请求，多出来的请求等前面的请求关闭以后再发。
+ * 这个数不要超过系统连接池的大小（http.maxConnections，默认是5），这样所有的连接用完以后都能放回池中被重复使用，
+ * 不会一边新建连接一边关闭空闲的连接。
+ */
+public class HttpFetcher implements Fetcher {
+
+	/** 关闭响应时最多丢弃这么多没有读完的数据，再多就直接断开连接，不值得为了重用连接把它们都下载下来 */
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	/** 等待一个连接时，每隔这么久检查一次请求有没有被取消 */
+	private static final long PERMIT_POLL_MILLIS = 100;
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int maxConnectionsPerHost;
+
+	/** 每个主机剩下的连接数，由自己加锁保护 */
+	private final Map<String, Semaphore> hostPermits = new HashMap<String, Semaphore>();
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong discardCount = new AtomicLong();
+
+	/**
+	 * @param connectTimeout
+	 *            连接超时时间，毫秒
+	 * @param readTimeout
+	 *            读取超时时间，毫秒
+	 * @param maxConnectionsPerHost
+	 *            同一个主机同时最多的请求数
+	 */
+	public HttpFetcher(int connectTimeout, int readTimeout,
+			int maxConnectionsPerHost) {
+		if (connectTimeout < 0 || readTimeout < 0 || maxConnectionsPerHost <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	@Override
+	public Call newCall(String url) {
+		return new HttpCall(url);
+	}
+
+	private Semaphore permits(URL url) {
+		String host = url.getProtocol() + "://" + url.getHost() + ":"
+				+ (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+		synchronized (hostPermits) {
+			Semaphore permits = hostPermits.get(host);
+			if (permits == null) {
+				permits = new Semaphore(maxConnectionsPerHost);
+				hostPermits.put(host, permits);
+			}
+			return permits;
+		}
+	}
+
+	/** 发出的请求数 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/** 失败的请求数 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/** 因为主机的连接数到了上限而等待的次数 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	/** 响应没有读完就关闭，只能断开而不能重用的连接数 */
+	public long getDiscardCount() {
+		return discardCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "HttpFetcher: requests=" + requestCount + " failures="
+				+ failureCount + " waits=" + waitCount + " discarded="
+				+ discardCount;
+	}
+
+	private class HttpCall implements Call {
+		private final String url;
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+		private boolean executed;
+		private volatile boolean cancelled;
+		private volatile HttpURLConnection connection;
+
+		HttpCall(String url) {
+			this.url = url;
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			headers.put(name, value);
+		}
+
+		@Override
+		public Response execute() throws IOException {
+			if (executed) {
+				throw new IllegalStateException("already executed");
+			}
+			executed = true;
+			URL target = new URL(url);
+			Semaphore permits = permits(target);
+			acquire(permits);
+			boolean success = false;
+			try {
+				requestCount.incrementAndGet();
+				HttpURLConnection connection = (HttpURLConnection) target
+						.openConnection();
+				this.connection = connection;
+				if (cancelled) {
+					// cancel()可能在connection赋值之前调用，没能断开连接
+					throw new IOException("Canceled");
+				}
+				connection.setConnectTimeout(connectTimeout);
+				connection.setReadTimeout(readTimeout);
+				connection.setUseCaches(false);
+				for (Map.Entry<String, String> header : headers.entrySet()) {
+					connection.setRequestProperty(header.getKey(),
+							header.getValue());
+				}
+				HttpResponse response = new HttpResponse(connection,
+						connection.getResponseCode(), permits);
+				success = true;
+				return response;
+			} finally {
+				if (!success) {
+					failureCount.incrementAndGet();
+					HttpURLConnection connection = this.connection;
+					if (connection != null) {
+						connection.disconnect();
+					}
+					permits.release();
+				}
+			}
+		}
+
+		private void acquire(Semaphore permits) throws IOException {
+			if (permits.tryAcquire()) {
+				return;
+			}
+			waitCount.incrementAndGet();
+			try {
+				while (!permits.tryAcquire(PERMIT_POLL_MILLIS,
+						TimeUnit.MILLISECONDS)) {
+					if (cancelled) {
+						throw new IOException("Canceled");
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			HttpURLConnection connection = this.connection;
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	private class HttpResponse implements Response {
+		private final HttpURLConnection connection;
+		private final int code;
+		private final Semaphore permits;
+		private InputStream body;
+		private boolean closed;
+
+		HttpResponse(HttpURLConnection connection, int code, Semaphore permits) {
+			this.connection = connection;
+			this.code = code;
+			this.permits = permits;
+		}
+
+		@Override
+		public int getCode() {
+			return code;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return connection.getHeaderField(name);
+		}
+
+		@Override
+		public long getContentLength() {
+			String length = connection.getHeaderField("Content-Length");
+			if (length == null) {
+				return -1;
+			}
+			try {
+				return Long.parseLong(length.trim());
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		@Override
+		public synchronized InputStream getBody() throws IOException {
+			if (closed) {
+				throw new IllegalStateException("closed");
+			}
+			if (body == null) {
+				// 出错的响应的响应体要从getErrorStream()读，getInputStream()会抛异常
+				body = code >= 400 ? connection.getErrorStream() : connection
+						.getInputStream();
+				if (body == null) {
+					body = new InputStream() {
+						@Override
+						public int read() {
+							return -1;
+						}
+					};
+				}
+			}
+			return body;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				InputStream body = this.body;
+				if (body == null) {
+					body = code >= 400 ? connection.getErrorStream()
+							: connection.getInputStream();
+				}
+				if (body != null) {
+					// 读完剩下的数据，连接才能放回连接池
+					if (!drain(body)) {
+						discardCount.incrementAndGet();
+						connection.disconnect();
+					}
+					body.close();
+				}
+			} catch (IOException e) {
+				connection.disconnect();
+			} finally {
+				permits.release();
+			}
+		}
+
+		/**
+		 * 读完输入流中剩下的数据，超过MAX_DRAIN_BYTES时放弃，返回false
+		 */
+		private boolean drain(InputStream in) throws IOException {
+			byte[] buffer = new byte[4096];
+			int remaining = MAX_DRAIN_BYTES;
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				remaining -= count;
+				if (remaining < 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.example.piccache.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -7,18 +8,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 
 import libcore.io.DiskLruCache;
 import libcore.io.DiskLruCache.Snapshot;
+import libcore.io.TieredDiskCache;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.os.Environment;
@@ -27,6 +30,8 @@ import android.os.Message;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 
+import com.example.piccache.utils.ImageLoadScheduler.Priority;
+
 /**
  * 这个工具类是进行图片下载使用了多级缓存机制。使用了lruCache和diskLruCache相结合的方式，对于从内存中，和从本地缓存中，可以直接获取到图片
  * ，但是对于从网络下载图片的类型，
@@ -68,17 +73,46 @@ public class ImageCacheUtil {
 	public static final int SUCCESS = 100;
 	public static final int FAIL = 101;
 	private LruCache<String, Bitmap> lruCache;
-	private ExecutorService newFixedThreadPool;
+	/** 从本地缓存查找图片的线程池，磁盘读取不用很多线程 */
+	private ImageLoadScheduler diskScheduler;
+	/** 从网络下载图片的线程池，主要时间在等网络，线程可以多一些 */
+	private ImageLoadScheduler netScheduler;
+	/** 解码图片的线程池，解码很耗CPU，线程数和CPU核数一样 */
+	private ImageLoadScheduler decodeScheduler;
+	/** 提交下载时写入本地缓存的图片的线程池，只有一个线程，一个一个地提交 */
+	private ImageLoadScheduler writeScheduler;
+	/** 断开被取消的下载连接的线程池。HTTPS断开连接要读写socket，不能在主线程做 */
+	private ImageLoadScheduler cancelScheduler;
 
 	private Handler handler;
 
+	/**
+	 * 正在从本地缓存读取或者从网络下载的图片，key和内存缓存的key一样（图片的url加上尺寸）。
+	 * 同一张图片的同一个尺寸同时只加载一次，后来的请求挂在已有的任务上等结果
+	 */
+	private final Map<String, RunnableTask> inFlight = new HashMap<String, RunnableTask>();
+
+	private TieredDiskCache diskCache;
+
 	private DiskLruCache mDiskLruCache;
 
-	private Snapshot snapShot;
+	private DiskCacheSizePolicy sizePolicy;
+
+	/** 本地缓存的图片下载以后这么久之内直接使用，过期以后要向服务器验证，默认1天 */
+	private volatile long freshnessLifetime = 24 * 60 * 60 * 1000L;
 
-	private FileInputStream fileInputStream;
+	/** 访问网络用的接口，连接超时和读取超时都是5秒，同一个主机同时最多4个连接 */
+	private volatile Fetcher fetcher = new HttpFetcher(5000, 5000, 4);
 
-	private FileDescriptor fileDescriptor;
+	/** 缓存条目中存图片的位置 */
+	private static final int INDEX_IMAGE = 0;
+	/** 缓存条目中存验证信息（ETag、Last-Modified）的位置 */
+	private static final int INDEX_VALIDATORS = 1;
+
+	/**
+	 * 和原来MD5Encoder算出来的key一样。不过每个key现在对应两个文件，升级后第一次打开时以前的缓存还是会被清空一次
+	 */
+	private final CacheKeyDeriver keyDeriver = CacheKeyDeriver.MD5;
 
 	/**
 	 * 调用这个工具类，需要传递两个参数
@@ -107,164 +141,885 @@ public class ImageCacheUtil {
 				// 创建出这个路径来
 				cacheDir.mkdirs();
 			}
-			// 创建出这样一个DiskLruCache对象来，并且规定本应用图片的最大缓存大小为10兆
-			mDiskLruCache = DiskLruCache.open(cacheDir, getAppVersion(context),
-					1, 10 * 1024 * 1024);
+			// 内部存储比sd卡快，用来放访问最频繁的图片，最大2兆
+			File hotCacheDir = new File(context.getCacheDir(), "ImageCacheHot");
+			if (!hotCacheDir.exists()) {
+				hotCacheDir.mkdirs();
+			}
+			// 创建出两级的磁盘缓存：新下载的图片先写到大的缓存里，访问多次以后会被提升到内部存储的快速缓存里，
+			// 快速缓存满了再降级回大的缓存。大的缓存最大缓存大小为10兆
+			// 每个key对应两个文件：图片和验证信息。以前每个key只有一个文件的缓存会被清空重建
+			diskCache = TieredDiskCache.open(hotCacheDir, 2 * 1024 * 1024,
+					cacheDir, 10 * 1024 * 1024, getAppVersion(context), 2);
+			mDiskLruCache = diskCache.getBulkTier();
+			// 同一张图片可能有好几个URL（不同的CDN或者参数），内容相同的图片文件只存一份
+			mDiskLruCache.setDeduplication(true);
+			// 10兆只是初始值，实际大小按剩余空间的10%来定，最少10兆，最多200兆
+			sizePolicy = new DiskCacheSizePolicy(mDiskLruCache, 0.1f,
+					10 * 1024 * 1024, 200 * 1024 * 1024);
+			// 缓存快满的时候，只有比将被淘汰的图片访问更频繁的图片才写入文件，避免只看一次的图片把常用图片挤出去
+			mDiskLruCache.setAdmissionFilter(true);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		// 2*cup核数+1 创建一个线程池，一般这个线程池的线程个数是手机核数*2+1
-		newFixedThreadPool = Executors.newFixedThreadPool(5);
+		// 排队的任务按优先级执行，同一优先级后来的先执行
+		netScheduler = new ImageLoadScheduler("fetch", 5, 0);
+		diskScheduler = new ImageLoadScheduler("disk-read", 2, 0);
+		// 解码和写文件的队列有长度限制，排满了前面的阶段会等待，避免下载的数据和图片在内存中堆积
+		int cpuCount = Runtime.getRuntime().availableProcessors();
+		decodeScheduler = new ImageLoadScheduler("decode", cpuCount,
+				cpuCount * 2);
+		writeScheduler = new ImageLoadScheduler("disk-write", 1, 4);
+		cancelScheduler = new ImageLoadScheduler("cancel", 1, 0);
 		this.handler = handler;
+		if (sizePolicy != null) {
+			// 查询剩余空间要访问文件系统，不能在主线程做。读文件的队列没有长度限制，提交不会阻塞
+			diskScheduler.submit(new SizePolicyTask(true), Priority.BACKGROUND);
+		}
+	}
+
+	/**
+	 * 设置本地缓存的图片多久以后过期。过期的图片会带着ETag和Last-Modified向服务器发条件请求，
+	 * 没有变的话服务器返回304，只更新验证信息，不用重新下载
+	 */
+	public void setFreshnessLifetime(long freshnessLifetimeMillis) {
+		if (freshnessLifetimeMillis < 0) {
+			throw new IllegalArgumentException("freshnessLifetime < 0");
+		}
+		this.freshnessLifetime = freshnessLifetimeMillis;
+	}
+
+	/**
+	 * 替换访问网络用的接口，比如换成连接本地测试服务器的实现
+	 */
+	public void setFetcher(Fetcher fetcher) {
+		if (fetcher == null) {
+			throw new NullPointerException("fetcher == null");
+		}
+		this.fetcher = fetcher;
+	}
+
+	/**
+	 * 图片从本地缓存或者网络加载完成（或者加载失败）的回调，在主线程中调用
+	 */
+	public interface OnImageLoadedListener {
+		/**
+		 * @param bitmap
+		 *            加载失败时为null
+		 */
+		void onImageLoaded(String imageUrl, Bitmap bitmap);
 	}
 
 	public Bitmap getBitmap(String imgUrl) {
-		// position为确认给那个imageview控件使用的tag
-		Bitmap bitmap = null;
-		// 1,先去内存中去取，这样的效率最高
-		bitmap = lruCache.get(imgUrl);
-		if (bitmap != null) {
-			Log.i(tag, "从内存中获取到的图片");
-			return bitmap;
+		return getBitmap(imgUrl, 0, 0, null, Priority.VISIBLE, null);
+	}
+
+	/**
+	 * 和getBitmap(String)一样，但是图片不在内存中时，加载完成后会回调listener，而不是给handler发消息
+	 */
+	public Bitmap getBitmap(String imgUrl, OnImageLoadedListener listener) {
+		return getBitmap(imgUrl, 0, 0, null, Priority.VISIBLE, listener);
+	}
+
+	/**
+	 * 获取图片。只有内存中的图片会直接返回，在主线程中调用也不会卡顿；
+	 * 其他情况返回null，在后台线程中先读本地缓存，没有再从网络下载，加载完成后通知
+	 * 
+	 * @param reqWidth
+	 *            显示图片的宽度，图片会按2的整数次幂缩小到不小于这个宽高再解码，为0时按原图大小解码
+	 * @param reqHeight
+	 *            显示图片的高度
+	 * @param requestTag
+	 *            用来取消这次请求的tag，一般是要显示图片的ImageView，可以为null
+	 * @param priority
+	 *            加载的优先级
+	 * @param listener
+	 *            加载完成的回调，为null时给handler发消息
+	 */
+	public Bitmap getBitmap(String imgUrl, int reqWidth, int reqHeight,
+			Object requestTag, Priority priority, OnImageLoadedListener listener) {
+		if (reqWidth <= 0 || reqHeight <= 0) {
+			reqWidth = 0;
+			reqHeight = 0;
 		}
-		// 2,如果内存中没有数据，再到文件中去取，效率次于内存
-		bitmap = getBitmapFromLocal(imgUrl);
+		// 1,先去内存中去取，这样的效率最高。同一张图片不同的尺寸分别缓存
+		String memoryKey = getMemoryKey(imgUrl, reqWidth, reqHeight);
+		Bitmap bitmap = lruCache.get(memoryKey);
 		if (bitmap != null) {
-			Log.i(tag, "从文件中获取到的图片");
+			Log.i(tag, "从内存中获取到的图片");
 			return bitmap;
 		}
-		// 3,如果文件中没有数据，去网络去下载,效率最低
-		getBitmapFromNet(imgUrl);
-		Log.i(tag, "网络获取到的图片.......");
+		// 2,如果内存中没有数据，在后台再到文件中去取，文件中也没有再去网络下载
+		load(imgUrl, reqWidth, reqHeight, memoryKey, new Request(requestTag,
+				priority, listener));
 		return null;
 	}
 
 	/**
-	 * 创建一个线程
+	 * 内存缓存的key。按原图大小解码的图片就是url，缩小的图片在后面加上尺寸
+	 */
+	private static String getMemoryKey(String imgUrl, int reqWidth,
+			int reqHeight) {
+		if (reqWidth == 0) {
+			return imgUrl;
+		}
+		return imgUrl + "#" + reqWidth + "x" + reqHeight;
+	}
+
+	/**
+	 * 取消tag为requestTag的请求。比如ImageView被复用来显示另一张图片时，之前等的图片就不需要了。
+	 * 如果一张图片已经没有请求在等了，还在排队的加载任务会被移出队列，正在下载的会断开连接
+	 */
+	public void cancel(Object requestTag) {
+		if (requestTag == null) {
+			return;
+		}
+		List<Fetcher.Call> calls = new ArrayList<Fetcher.Call>();
+		synchronized (inFlight) {
+			for (Iterator<RunnableTask> it = inFlight.values().iterator(); it
+					.hasNext();) {
+				RunnableTask task = it.next();
+				for (Iterator<Request> r = task.requests.iterator(); r
+						.hasNext();) {
+					if (r.next().tag == requestTag) {
+						r.remove();
+					}
+				}
+				if (task.requests.isEmpty()) {
+					it.remove();
+					Fetcher.Call call = task.cancel();
+					if (call != null) {
+						calls.add(call);
+					}
+				}
+			}
+		}
+		if (!calls.isEmpty()) {
+			cancelScheduler.submit(new DisconnectTask(calls),
+					Priority.VISIBLE);
+		}
+	}
+
+	/**
+	 * 断开被取消的任务正在下载的连接，在cancelScheduler中执行
+	 */
+	private static class DisconnectTask extends ImageLoadScheduler.Job {
+		private final List<Fetcher.Call> calls;
+
+		DisconnectTask(List<Fetcher.Call> calls) {
+			this.calls = calls;
+		}
+
+		@Override
+		public void run() {
+			for (Fetcher.Call call : calls) {
+				call.cancel();
+			}
+		}
+	}
+
+	/**
+	 * 一次获取图片的请求
+	 */
+	private static class Request {
+		final Object tag;
+		final Priority priority;
+		/** 为null表示通过handler发消息 */
+		final OnImageLoadedListener listener;
+
+		Request(Object tag, Priority priority, OnImageLoadedListener listener) {
+			this.tag = tag;
+			this.priority = priority;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * 加载一张图片的任务，会依次经过几个阶段：先在diskScheduler中查找本地缓存，本地没有就到netScheduler中从网络下载，
+	 * 然后都到decodeScheduler中解码。下载的时候数据同时写入本地缓存，解码成功以后再交给writeScheduler提交。
+	 * 每个阶段的线程池单独设置大小，网络慢的时候不会占着解码的线程，解码也不会影响同时下载的个数
 	 * 
 	 * @author Administrator
 	 * 
 	 */
-	class RunnableTask implements Runnable {
+	class RunnableTask extends ImageLoadScheduler.Job {
 		private String imageUrl;
 
-		public RunnableTask(String imageUrl) {
+		/** 要解码的尺寸，为0时按原图大小解码 */
+		private final int reqWidth;
+		private final int reqHeight;
+
+		/** 内存缓存和inFlight中的key */
+		private final String memoryKey;
+
+		/** 等待这张图片的请求。由inFlight加锁保护 */
+		private final List<Request> requests = new ArrayList<Request>();
+
+		/** 当前在哪个阶段，由inFlight加锁保护 */
+		private ImageLoadScheduler stage = diskScheduler;
+
+		private volatile boolean cancelled;
+
+		/** 正在进行的网络请求，取消时中止它 */
+		private volatile Fetcher.Call call;
+
+		/** 本地缓存中找到的图片，交给解码阶段，解码以后关闭 */
+		private Snapshot snapshot;
+
+		/** 从网络下载的图片数据，交给解码阶段 */
+		private byte[] data;
+
+		/** 下载时同时写入的本地缓存，解码成功以后才提交，避免把不是图片的数据缓存下来 */
+		private DiskLruCache.Editor editor;
+
+		/** 本地缓存的图片的验证信息，用于条件请求 */
+		private Validators validators;
+
+		/**
+		 * 下载中断时用来保留已经下载的部分的标记（ETag或者Last-Modified），下次用Range请求接着下载。
+		 * 为null时下载中断就全部丢弃
+		 */
+		private String resumeTag;
+
+		public RunnableTask(String imageUrl, int reqWidth, int reqHeight,
+				String memoryKey) {
 			// 想要使用该线程，需要将图片的路径传递过来
 			this.imageUrl = imageUrl;
+			this.reqWidth = reqWidth;
+			this.reqHeight = reqHeight;
+			this.memoryKey = memoryKey;
+		}
+
+		/**
+		 * 在inFlight加锁时调用。只做标记，不访问网络
+		 *
+		 * @return 正在下载时返回要断开的连接，由调用者在锁外、主线程以外断开；否则返回null
+		 */
+		Fetcher.Call cancel() {
+			cancelled = true;
+			if (stage.remove(this)) {
+				release();
+				return null;
+			}
+			return call;
+		}
+
+		/**
+		 * 在inFlight加锁时调用
+		 */
+		void reprioritize(Priority priority) {
+			stage.reprioritize(this, priority);
 		}
 
 		@Override
 		public void run() {
+			ImageLoadScheduler current;
+			synchronized (inFlight) {
+				current = stage;
+			}
+			if (cancelled) {
+				release();
+				return;
+			}
+			try {
+				if (current == diskScheduler) {
+					loadFromLocal();
+				} else if (current == netScheduler) {
+					loadFromNet();
+				} else {
+					decode();
+				}
+			} catch (Throwable t) {
+				// 没有想到的错误（比如解码大图时内存不够）也要结束任务，否则任务一直留在inFlight里，
+				// editor一直占着这个key，后来的请求挂在这个任务上永远等不到结果
+				Log.e(tag, "加载图片出错 " + imageUrl, t);
+				release();
+				finish(null);
+			}
+		}
+
+		/**
+		 * 交给下一个阶段。下一个阶段的队列满了会在这里等待，所以不能持有inFlight的锁
+		 */
+		private void moveTo(ImageLoadScheduler next) {
+			synchronized (inFlight) {
+				if (cancelled) {
+					release();
+					return;
+				}
+				stage = next;
+			}
+			next.submit(this, getPriority());
+		}
+
+		private void loadFromLocal() {
+			snapshot = getSnapshotFromLocal(imageUrl);
+			if (snapshot != null) {
+				validators = Validators.read(snapshot);
+				if (validators.isFresh(freshnessLifetime)) {
+					moveTo(decodeScheduler);
+					return;
+				}
+				// 过期了，带着缓存的ETag和Last-Modified去服务器确认一下图片有没有变
+				Log.i(tag, "本地缓存的图片过期了，重新验证");
+			}
+			// 3,如果文件中没有数据，去网络去下载,效率最低
+			moveTo(netScheduler);
+		}
+
+		private void loadFromNet() {
+			Log.i(tag, "网络获取到的图片.......");
+			// 是否解码本地缓存的图片
+			boolean useLocal = false;
 			// 访问网络,下载图片
 			try {
-				URL url = new URL(imageUrl);
-				HttpURLConnection connection = (HttpURLConnection) url
-						.openConnection();
-				// 读取超时时间()
-				connection.setReadTimeout(5000);
-				// 链接超时时间()
-				connection.setConnectTimeout(5000);
-				connection.setRequestMethod("GET");
-				InputStream inputStream = connection.getInputStream();
-				Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-
-				// 消息机制()
-				Message msg = new Message();
-				msg.what = SUCCESS;
-				msg.obj = bitmap;
-				Bundle bundle = new Bundle();
-				bundle.putString("tag", imageUrl);
-				// 这里是为了将下载图片时传来tag通过handler发给主线程，在主线程中更新界面不会出现图片错乱的现象
-				msg.setData(bundle);
-				handler.sendMessage(msg);
-
-				// 内存缓存
-				lruCache.put(imageUrl, bitmap);
-				// 写入文件
-				writeToLocal(imageUrl, bitmap);
+				long resumeFrom = 0;
+				if (validators == null) {
+					// editor为null说明正在被别的线程写入，或者没有通过准入过滤，这时不用写入
+					editor = diskCache.edit(keyDeriver.derive(imageUrl));
+					if (editor != null && editor.getPartialTag() != null
+							&& editor.getPartialLength(INDEX_IMAGE) > 0) {
+						resumeFrom = editor.getPartialLength(INDEX_IMAGE);
+						resumeTag = editor.getPartialTag();
+					}
+				}
+				Fetcher.Response response = execute(resumeFrom);
+				int code = response.getCode();
+				if (resumeFrom > 0
+						&& (code == 416 || (code == HttpURLConnection.HTTP_PARTIAL
+								&& getContentRangeStart(response) != resumeFrom))) {
+					// 保留的部分和服务器上的图片对不上，不要了，不带Range重新请求一次完整的图片
+					Log.i(tag, "断点续传失败，重新下载完整的图片");
+					response.close();
+					resumeFrom = 0;
+					resumeTag = null;
+					response = execute(0);
+				}
+				OutputStream outputStream = null;
+				try {
+					if (response.getCode() == HttpURLConnection.HTTP_NOT_MODIFIED
+							&& snapshot != null) {
+						Log.i(tag, "服务器上的图片没有变，继续使用本地缓存");
+						refreshValidators(validators.merge(response));
+						useLocal = true;
+					} else if (response.getCode() == HttpURLConnection.HTTP_PARTIAL
+							&& resumeFrom > 0
+							&& getContentRangeStart(response) == resumeFrom) {
+						Log.i(tag, "从第" + resumeFrom + "个字节接着下载");
+						// 解码需要完整的数据，先读出上次下载的部分，新下载的数据接在后面
+						ByteArrayOutputStream received = new ByteArrayOutputStream(
+								(int) (resumeFrom + Math.max(0,
+										response.getContentLength())));
+						InputStream partial = editor
+								.newPartialInputStream(INDEX_IMAGE);
+						try {
+							copy(partial, received, null);
+						} finally {
+							partial.close();
+						}
+						outputStream = editor
+								.newAppendingOutputStream(INDEX_IMAGE);
+						copy(response.getBody(), received, outputStream);
+						data = received.toByteArray();
+						editor.set(INDEX_VALIDATORS, Validators.from(response)
+								.toString());
+						closeSnapshot();
+					} else if (response.getCode() != HttpURLConnection.HTTP_OK) {
+						throw new IOException("HTTP " + response.getCode()
+								+ " " + imageUrl);
+					} else {
+						// 下载的原始数据直接写入文件，不用再把bitmap压缩一遍，文件更小，图片质量也没有损失。
+						if (editor == null && snapshot != null) {
+							editor = diskCache.edit(keyDeriver.derive(imageUrl));
+						}
+						ByteArrayOutputStream received = new ByteArrayOutputStream(
+								response.getContentLength() > 0 ? (int) response
+										.getContentLength() : 8192);
+						if (editor != null) {
+							// 完整的响应，上次下载的部分不要了
+							outputStream = editor.newOutputStream(INDEX_IMAGE);
+							resumeTag = getResumeTag(response);
+						}
+						// 只负责下载，解码交给解码阶段
+						copy(response.getBody(), received, outputStream);
+						data = received.toByteArray();
+						if (editor != null) {
+							editor.set(INDEX_VALIDATORS,
+									Validators.from(response).toString());
+						}
+						// 图片变了，不再需要过期的缓存
+						closeSnapshot();
+					}
+				} finally {
+					// 关闭响应，连接会放回连接池给下一个请求用
+					response.close();
+					if (outputStream != null) {
+						outputStream.close();
+					}
+				}
+			} catch (Exception e) {
+				// 下载中断，已经写入文件的部分留着下次接着下载
+				abandonEditor();
+				if (cancelled) {
+					// 被取消时断开连接导致的异常，已经没有请求在等了
+					release();
+					return;
+				}
+				e.printStackTrace();
+				data = null;
+				// 验证失败，比如没有网络，先显示过期的缓存
+				useLocal = snapshot != null;
+			} finally {
+				call = null;
+				resumeTag = null;
+			}
+			if (useLocal || data != null) {
+				moveTo(decodeScheduler);
+				return;
+			}
+			finish(null);
+		}
+
+		/**
+		 * 发出请求，resumeFrom大于0时只请求这个位置以后的部分
+		 */
+		private Fetcher.Response execute(long resumeFrom) throws IOException {
+			Fetcher.Call call = fetcher.newCall(imageUrl);
+			this.call = call;
+			if (cancelled) {
+				// cancel()可能在call赋值之前调用，没能取消
+				throw new IOException("Canceled");
+			}
+			if (validators != null) {
+				// 条件请求，图片没有变时服务器只返回304，不用重新下载
+				validators.addConditionalHeaders(call);
+			} else if (resumeFrom > 0) {
+				// 上次下载到一半断了，只请求剩下的部分。If-Range保证服务器上的图片变了时返回完整的图片
+				call.setHeader("Range", "bytes=" + resumeFrom + "-");
+				call.setHeader("If-Range", resumeTag);
+			}
+			return call.execute();
+		}
 
+		private void decode() {
+			boolean fromLocal = snapshot != null;
+			DiskLruCache.Editor pending = editor;
+			editor = null;
+			Bitmap bitmap = null;
+			try {
+				BitmapFactory.Options options = new BitmapFactory.Options();
+				InputStream in = fromLocal ? snapshot.getInputStream(INDEX_IMAGE)
+						: null;
+				if (in instanceof FileInputStream) {
+					// 根据索引值获取一个文件流，根据文件描述符解析一个文件流，获取bitmap
+					FileInputStream fileInputStream = (FileInputStream) in;
+					FileDescriptor fileDescriptor = fileInputStream.getFD();
+					if (reqWidth > 0) {
+						// 先只解析图片的宽高，算出缩放比例
+						options.inJustDecodeBounds = true;
+						BitmapFactory.decodeFileDescriptor(fileDescriptor, null,
+								options);
+						options.inSampleSize = calculateInSampleSize(options,
+								reqWidth, reqHeight);
+						options.inJustDecodeBounds = false;
+						fileInputStream.getChannel().position(0);
+					}
+					bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor,
+							null, options);
+				} else {
+					if (in != null) {
+						// 压缩存储或者边读边校验的文件不是普通的文件流，不能按文件描述符解码，先读到内存里
+						ByteArrayOutputStream received = new ByteArrayOutputStream(
+								(int) snapshot.getLength(INDEX_IMAGE));
+						copy(in, received, null);
+						data = received.toByteArray();
+					}
+					if (reqWidth > 0) {
+						options.inJustDecodeBounds = true;
+						BitmapFactory.decodeByteArray(data, 0, data.length,
+								options);
+						options.inSampleSize = calculateInSampleSize(options,
+								reqWidth, reqHeight);
+						options.inJustDecodeBounds = false;
+					}
+					bitmap = BitmapFactory.decodeByteArray(data, 0, data.length,
+							options);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				release();
+				if (bitmap == null) {
+					abortQuietly(pending);
+					pending = null;
+				}
+			}
+			if (bitmap == null && fromLocal) {
+				// 本地缓存的文件坏了，重新下载
+				moveTo(netScheduler);
 				return;
-			} catch (Exception e) {
+			}
+			if (bitmap != null) {
+				if (fromLocal) {
+					Log.i(tag, "从文件中获取到的图片");
+				}
+				// 内存缓存，要在从inFlight中移除之前放进去，这样后来的请求能直接从内存拿到
+				lruCache.put(memoryKey, bitmap);
+			}
+			finish(bitmap);
+			if (pending != null) {
+				// 提交文件。提交只有一个线程，排满了解码线程会在这里等待
+				writeScheduler.submit(new CommitTask(pending),
+						Priority.BACKGROUND);
+			}
+		}
+
+		/**
+		 * 下载中断时放弃editor。服务器给了ETag或者Last-Modified时保留已经下载的部分
+		 */
+		private void abandonEditor() {
+			if (editor != null && resumeTag != null) {
+				try {
+					editor.abortKeepingPartial(resumeTag);
+				} catch (Exception e) {
+					e.printStackTrace();
+					abortQuietly(editor);
+				}
+			} else {
+				abortQuietly(editor);
+			}
+			editor = null;
+			resumeTag = null;
+		}
+
+		private void closeSnapshot() {
+			// 关闭snapshot，它会关闭文件流并释放对缓存条目的占用
+			if (snapshot != null) {
+				snapshot.close();
+				snapshot = null;
+			}
+			validators = null;
+		}
+
+		/**
+		 * 服务器返回304以后，只更新本地缓存中的验证信息，图片文件不变
+		 */
+		private void refreshValidators(Validators refreshed) {
+			DiskLruCache.Editor editor = null;
+			try {
+				// 按snapshot编辑，缓存在这期间被改过时返回null，不会用旧的验证信息覆盖新的图片。
+				// 和其他写入一样写到大的缓存里，快速缓存里的副本会被删掉，两级缓存不会不一致
+				editor = diskCache.edit(snapshot);
+				if (editor != null) {
+					editor.set(INDEX_VALIDATORS, refreshed.toString());
+					editor.commit();
+					editor = null;
+				}
+			} catch (IOException e) {
 				e.printStackTrace();
+			} finally {
+				abortQuietly(editor);
 			}
+		}
+
+		/**
+		 * 释放交给下一个阶段的数据
+		 */
+		private void release() {
+			closeSnapshot();
+			data = null;
+			abortQuietly(editor);
+			editor = null;
+		}
 
-			Message msg = new Message();
-			msg.what = FAIL;
-			handler.sendMessage(msg);
+		/**
+		 * 从inFlight中移除这个任务，然后通知所有等待这张图片的请求
+		 */
+		private void finish(final Bitmap bitmap) {
+			List<Request> waiting;
+			synchronized (inFlight) {
+				// 被取消的任务已经移除了，同一个url可能已经有新的任务
+				if (inFlight.get(memoryKey) == this) {
+					inFlight.remove(memoryKey);
+				}
+				waiting = new ArrayList<Request>(requests);
+				requests.clear();
+			}
+			boolean messageSent = false;
+			for (Request request : waiting) {
+				final OnImageLoadedListener listener = request.listener;
+				if (listener != null) {
+					handler.post(new Runnable() {
+						@Override
+						public void run() {
+							listener.onImageLoaded(imageUrl, bitmap);
+						}
+					});
+				} else if (!messageSent) {
+					// 通过handler等待的请求都是找同一个tag的控件，发一条消息就够了
+					messageSent = true;
+					// 消息机制()
+					Message msg = new Message();
+					msg.what = bitmap != null ? SUCCESS : FAIL;
+					msg.obj = bitmap;
+					Bundle bundle = new Bundle();
+					bundle.putString("tag", imageUrl);
+					// 这里是为了将下载图片时传来tag通过handler发给主线程，在主线程中更新界面不会出现图片错乱的现象
+					msg.setData(bundle);
+					handler.sendMessage(msg);
+				}
+			}
 		}
 	}
 
-	private void writeToLocal(String imageUrl, Bitmap bitmap) {
-		try {
-			// 将imageUrl转化成Md5格式的字符串
-			String key = MD5Encoder.encode(imageUrl);
-			// 通过这个字符串获取到的就是图片存储的文件名称
-			DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-			if (editor != null) {
-				// 当写入到文件时，通过bitmap的compress方法，将图片写入的输出流中
-				OutputStream outputStream = editor.newOutputStream(0);
-				bitmap.compress(CompressFormat.JPEG, 100, outputStream);
+	/**
+	 * 本地缓存的图片的验证信息，存在缓存条目的INDEX_VALIDATORS中，每行一项：
+	 * 下载（或者验证）的时间、ETag、Last-Modified，服务器没有返回的项为空行
+	 */
+	private static final class Validators {
+		final long fetchedAt;
+		final String etag;
+		final String lastModified;
+
+		Validators(long fetchedAt, String etag, String lastModified) {
+			this.fetchedAt = fetchedAt;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * 刚收到的响应的验证信息
+		 */
+		static Validators from(Fetcher.Response response) {
+			return new Validators(System.currentTimeMillis(),
+					response.getHeader("ETag"),
+					response.getHeader("Last-Modified"));
+		}
+
+		/**
+		 * 读取缓存中的验证信息，读不出来时当作已经过期、没有ETag和Last-Modified
+		 */
+		static Validators read(Snapshot snapshot) {
+			try {
+				String[] lines = snapshot.getString(INDEX_VALIDATORS).split(
+						"\n", -1);
+				if (lines.length >= 3) {
+					return new Validators(Long.parseLong(lines[0]),
+							emptyToNull(lines[1]), emptyToNull(lines[2]));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (NumberFormatException e) {
+			}
+			return new Validators(0, null, null);
+		}
+
+		private static String emptyToNull(String value) {
+			return value.length() != 0 ? value : null;
+		}
+
+		boolean isFresh(long freshnessLifetime) {
+			long age = System.currentTimeMillis() - fetchedAt;
+			return age >= 0 && age < freshnessLifetime;
+		}
+
+		void addConditionalHeaders(Fetcher.Call call) {
+			if (etag != null) {
+				call.setHeader("If-None-Match", etag);
+			}
+			if (lastModified != null) {
+				call.setHeader("If-Modified-Since", lastModified);
+			}
+		}
+
+		/**
+		 * 304响应以后的验证信息，服务器可能返回新的ETag或者Last-Modified
+		 */
+		Validators merge(Fetcher.Response notModified) {
+			Validators received = from(notModified);
+			return new Validators(received.fetchedAt,
+					received.etag != null ? received.etag : etag,
+					received.lastModified != null ? received.lastModified
+							: lastModified);
+		}
+
+		@Override
+		public String toString() {
+			return fetchedAt + "\n" + (etag != null ? etag : "") + "\n"
+					+ (lastModified != null ? lastModified : "");
+		}
+	}
+
+	/**
+	 * 提交下载时写入本地缓存的图片的任务，在writeScheduler中一个一个地执行
+	 */
+	class CommitTask extends ImageLoadScheduler.Job {
+		private final DiskLruCache.Editor editor;
+
+		CommitTask(DiskLruCache.Editor editor) {
+			this.editor = editor;
+		}
+
+		@Override
+		public void run() {
+			try {
 				// 不要忘记还需要commit一下
 				editor.commit();
+				// 写入文件后剩余空间变少了，隔一段时间重新计算一下缓存大小
+				sizePolicy.evaluateIfDue();
+			} catch (Exception e) {
+				e.printStackTrace();
+				abortQuietly(editor);
+			}
+		}
+	}
+
+	/**
+	 * 按剩余空间重新计算本地缓存大小的任务，在后台线程中执行
+	 */
+	class SizePolicyTask extends ImageLoadScheduler.Job {
+		/** true表示不管距离上次计算多久都重新计算 */
+		private final boolean force;
+
+		SizePolicyTask(boolean force) {
+			this.force = force;
+		}
+
+		@Override
+		public void run() {
+			if (force) {
+				sizePolicy.evaluate();
 			} else {
+				sizePolicy.evaluateIfDue();
+			}
+		}
+	}
+
+	/**
+	 * 计算解码时的缩放比例：2的整数次幂里最大的一个，并且缩小以后的宽高都不小于要显示的宽高
+	 */
+	private static int calculateInSampleSize(BitmapFactory.Options options,
+			int reqWidth, int reqHeight) {
+		int inSampleSize = 1;
+		int halfWidth = options.outWidth / 2;
+		int halfHeight = options.outHeight / 2;
+		while (halfWidth / inSampleSize >= reqWidth
+				&& halfHeight / inSampleSize >= reqHeight) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+
+	/**
+	 * 把输入流中所有的数据写到out，同时写入tee
+	 * 
+	 * @param tee
+	 *            读到的数据同时写到这里，可以为null
+	 */
+	private static void copy(InputStream in, OutputStream out, OutputStream tee)
+			throws IOException {
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+			if (tee != null) {
+				tee.write(buffer, 0, count);
+			}
+		}
+	}
+
+	/**
+	 * 下载中断以后用来接着下载的标记。If-Range只能用强ETag（不以W/开头）或者Last-Modified
+	 */
+	private static String getResumeTag(Fetcher.Response response) {
+		String etag = response.getHeader("ETag");
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+		return response.getHeader("Last-Modified");
+	}
+
+	/**
+	 * 206响应的Content-Range（比如bytes 100-999/1000）中的起始位置，没有时返回-1
+	 */
+	private static long getContentRangeStart(Fetcher.Response response) {
+		String range = response.getHeader("Content-Range");
+		if (range == null || !range.startsWith("bytes ")) {
+			return -1;
+		}
+		int dash = range.indexOf('-');
+		if (dash == -1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(range.substring(6, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void abortQuietly(DiskLruCache.Editor editor) {
+		if (editor != null) {
+			try {
 				editor.abort();
+			} catch (Exception ignored) {
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
 
-	private void getBitmapFromNet(String url) {
-		newFixedThreadPool.execute(new RunnableTask(url));
+	private void load(String url, int reqWidth, int reqHeight,
+			String memoryKey, Request request) {
+		synchronized (inFlight) {
+			RunnableTask task = inFlight.get(memoryKey);
+			if (task != null) {
+				// 这张图片正在加载，不用再发一次请求，等它加载完一起通知
+				task.requests.add(request);
+				// 优先级按等待的请求里最高的算
+				if (request.priority.compareTo(task.getPriority()) < 0) {
+					task.reprioritize(request.priority);
+				}
+				return;
+			}
+			task = new RunnableTask(url, reqWidth, reqHeight, memoryKey);
+			task.requests.add(request);
+			inFlight.put(memoryKey, task);
+			// 读文件的队列不限制长度，在主线程中提交也不会阻塞
+			diskScheduler.submit(task, request.priority);
+		}
 	}
 
 	/**
-	 * 从本地缓存中获取图片
+	 * 从本地缓存中查找图片，在diskScheduler的线程中调用
 	 * 
 	 * @param imgUrl
 	 *            图片路径
-	 * @return 图片
+	 * @return 图片对应的缓存，用完以后要关闭；没有时返回null
 	 */
-	private Bitmap getBitmapFromLocal(String imgUrl) {
-
+	private Snapshot getSnapshotFromLocal(String imgUrl) {
 		try {
 			// 生成图片URL对应的key
-			String key = MD5Encoder.encode(imgUrl);
+			String key = keyDeriver.derive(imgUrl);
 			// 查找key对应的缓存
-			snapShot = mDiskLruCache.get(key);
-			if (snapShot == null) {
-				return null;
-			}
-			if (snapShot != null) {
-				// 根据索引值获取一个文件流
-				fileInputStream = (FileInputStream) snapShot.getInputStream(0);
-				// 通过文件描述符
-				fileDescriptor = fileInputStream.getFD();
-			}
-			Bitmap bitmap = null;
-			if (fileDescriptor != null) {
-				// 根据文件描述符，解析一个文件流，获取bitmap
-				bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-			}
-			if (bitmap != null) {
-				// 将Bitmap对象添加到内存缓存当中
-				lruCache.put(imgUrl, bitmap);
-			}
-			return bitmap;
+			return diskCache.get(key);
 		} catch (Exception e1) {
 			e1.printStackTrace();
-		} finally {
-			// 在最后，扫尾的工作
-			if (fileDescriptor == null && fileInputStream != null) {
-				try {
-					fileInputStream.close();
-				} catch (IOException e) {
-				}
-			}
 		}
 		return null;
 	}
 
+	/**
+	 * 各个加载阶段的统计数据
+	 */
+	public List<ImageLoadScheduler.Stats> getStageStats() {
+		List<ImageLoadScheduler.Stats> stats = new ArrayList<ImageLoadScheduler.Stats>();
+		stats.add(diskScheduler.getStats());
+		stats.add(netScheduler.getStats());
+		stats.add(decodeScheduler.getStats());
+		stats.add(writeScheduler.getStats());
+		return stats;
+	}
+
 	/**
 	 * 根据传入的uniqueName获取硬盘缓存的路径地址。 如果sd卡是挂载状态，就将缓存存储到sd卡上，否则，将缓存存到当前程序的包名下的缓存目录中
 	 */
@@ -301,9 +1056,15 @@ public class ImageCacheUtil {
 	 * 将缓存记录同步到journal文件中。供Activity在onPause的时候调用
 	 */
 	public void fluchCache() {
-		if (mDiskLruCache != null) {
+		if (diskCache != null) {
 			try {
-				mDiskLruCache.flush();
+				diskCache.flush();
+				diskScheduler.submit(new SizePolicyTask(false),
+						Priority.BACKGROUND);
+				for (ImageLoadScheduler.Stats stats : getStageStats()) {
+					Log.i(tag, stats.toString());
+				}
+				Log.i(tag, fetcher.toString());
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
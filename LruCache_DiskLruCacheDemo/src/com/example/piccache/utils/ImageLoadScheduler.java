@@ -0,0 +1,234 @@
+package com.example.piccache.utils;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 图片加载任务的调度器。和Executors.newFixedThreadPool不同的是，排队的任务不是先进先出：
+ * 优先级高的先执行（屏幕上能看到的 > 预加载 > 后台），同一个优先级里后提交的先执行，
+ * 这样用户快速滑动的时候，最后停下来看到的图片最先下载，已经滑过去的图片排在后面。
+ *
+ * 一个调度器就是加载流程中的一个阶段（读文件、下载、解码、写文件），每个阶段的线程数单独设置。
+ * 可以限制排队任务的个数，队列满了submit会阻塞，让上一个阶段慢下来，而不是无限制地堆积任务。
+ * getStats()返回这个阶段的统计数据，可以看出时间都花在了哪个阶段。
+ */
+public class ImageLoadScheduler {
+
+	/**
+	 * 优先级，排在前面的优先级高
+	 */
+	public enum Priority {
+		/** 屏幕上正在显示的 */
+		VISIBLE,
+		/** 马上要滑到的 */
+		PREFETCH,
+		/** 其他的 */
+		BACKGROUND
+	}
+
+	/**
+	 * 可以被调度的任务
+	 */
+	public abstract static class Job implements Runnable, Comparable<Job> {
+		private volatile Priority priority = Priority.VISIBLE;
+		private volatile long sequence;
+		/** 开始排队和开始执行的时间，用于统计 */
+		private volatile long enqueuedAt;
+		private volatile long startedAt;
+
+		public Priority getPriority() {
+			return priority;
+		}
+
+		@Override
+		public int compareTo(Job another) {
+			int result = priority.compareTo(another.priority);
+			if (result != 0) {
+				return result;
+			}
+			// 同一个优先级，后提交的先执行
+			return sequence > another.sequence ? -1
+					: sequence < another.sequence ? 1 : 0;
+		}
+	}
+
+	/**
+	 * 一个阶段某一时刻的统计数据
+	 */
+	public static final class Stats {
+		public final String name;
+		public final int threadCount;
+		/** 队列容量，0表示不限制 */
+		public final int capacity;
+		/** 正在排队的任务数 */
+		public final int queued;
+		/** 正在执行的任务数 */
+		public final int active;
+		public final long submitted;
+		public final long completed;
+		/** 提交时因为队列满了而阻塞的次数 */
+		public final long blocked;
+		/** 所有任务执行花费的时间之和 */
+		public final long busyMillis;
+		/** 所有任务排队等待的时间之和 */
+		public final long waitMillis;
+		/** 调度器创建以来经过的时间 */
+		public final long elapsedMillis;
+
+		Stats(String name, int threadCount, int capacity, int queued,
+				int active, long submitted, long completed, long blocked,
+				long busyMillis, long waitMillis, long elapsedMillis) {
+			this.name = name;
+			this.threadCount = threadCount;
+			this.capacity = capacity;
+			this.queued = queued;
+			this.active = active;
+			this.submitted = submitted;
+			this.completed = completed;
+			this.blocked = blocked;
+			this.busyMillis = busyMillis;
+			this.waitMillis = waitMillis;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		/**
+		 * 线程忙碌的时间占比，0到1之间。接近1说明这个阶段是瓶颈，可以考虑加线程
+		 */
+		public float occupancy() {
+			if (elapsedMillis <= 0) {
+				return 0;
+			}
+			return Math.min(1f, (float) busyMillis
+					/ (threadCount * elapsedMillis));
+		}
+
+		@Override
+		public String toString() {
+			return name + ": threads=" + threadCount + " occupancy="
+					+ Math.round(occupancy() * 100) + "% queued=" + queued
+					+ "/" + (capacity > 0 ? String.valueOf(capacity) : "-")
+					+ " active=" + active + " completed=" + completed + "/"
+					+ submitted + " blocked=" + blocked + " avgRun="
+					+ (completed > 0 ? busyMillis / completed : 0)
+					+ "ms avgWait=" + (completed > 0 ? waitMillis / completed : 0)
+					+ "ms";
+		}
+	}
+
+	private final String name;
+	private final int threadCount;
+	private final int capacity;
+	private final ThreadPoolExecutor executor;
+
+	/** 队列中剩下的空位，为null表示不限制 */
+	private final Semaphore slots;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final long createdAt = System.nanoTime();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong busyNanos = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	public ImageLoadScheduler(int threadCount) {
+		this("ImageLoadScheduler", threadCount, 0);
+	}
+
+	/**
+	 * @param name
+	 *            阶段的名字，用于统计
+	 * @param capacity
+	 *            最多排队的任务数，0表示不限制
+	 */
+	public ImageLoadScheduler(String name, int threadCount, int capacity) {
+		if (threadCount <= 0 || capacity < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.name = name;
+		this.threadCount = threadCount;
+		this.capacity = capacity;
+		slots = capacity > 0 ? new Semaphore(capacity) : null;
+		executor = new ThreadPoolExecutor(threadCount, threadCount, 0L,
+				TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>()) {
+			@Override
+			protected void beforeExecute(Thread t, Runnable r) {
+				Job job = (Job) r;
+				// 任务离开了队列，空出一个位置
+				if (slots != null) {
+					slots.release();
+				}
+				job.startedAt = System.nanoTime();
+				waitNanos.addAndGet(job.startedAt - job.enqueuedAt);
+				active.incrementAndGet();
+			}
+
+			@Override
+			protected void afterExecute(Runnable r, Throwable t) {
+				Job job = (Job) r;
+				busyNanos.addAndGet(System.nanoTime() - job.startedAt);
+				active.decrementAndGet();
+				completed.incrementAndGet();
+			}
+		};
+	}
+
+	/**
+	 * 以priority的优先级提交一个任务。队列满了会一直等到有空位，所以不要在持有别的任务需要的锁时调用
+	 */
+	public void submit(Job job, Priority priority) {
+		if (slots != null && !slots.tryAcquire()) {
+			blocked.incrementAndGet();
+			slots.acquireUninterruptibly();
+		}
+		submitted.incrementAndGet();
+		enqueue(job, priority);
+	}
+
+	private void enqueue(Job job, Priority priority) {
+		job.priority = priority;
+		job.sequence = sequence.incrementAndGet();
+		job.enqueuedAt = System.nanoTime();
+		executor.execute(job);
+	}
+
+	/**
+	 * 修改一个任务的优先级。任务还在排队时会重新排队，已经开始执行的任务不受影响。这个方法不会阻塞
+	 */
+	public void reprioritize(Job job, Priority priority) {
+		if (executor.remove(job)) {
+			// 重新排队的任务继续占用原来的位置
+			enqueue(job, priority);
+		} else {
+			job.priority = priority;
+		}
+	}
+
+	/**
+	 * 把还在排队的任务移出队列，返回false说明任务已经开始执行了或者已经执行完了
+	 */
+	public boolean remove(Job job) {
+		if (!executor.remove(job)) {
+			return false;
+		}
+		if (slots != null) {
+			slots.release();
+		}
+		submitted.decrementAndGet();
+		return true;
+	}
+
+	public Stats getStats() {
+		return new Stats(name, threadCount, capacity, executor.getQueue()
+				.size(), active.get(), submitted.get(), completed.get(),
+				blocked.get(), TimeUnit.NANOSECONDS.toMillis(busyNanos.get()),
+				TimeUnit.NANOSECONDS.toMillis(waitNanos.get()),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdAt));
+	}
+}
@@ -0,0 +1,69 @@
+package libcore.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Transforms the bytes of a {@link DiskLruCache} value on their way to and
+ * from disk, typically by compressing them. A codec is chosen per value index
+ * with {@link DiskLruCache#setCodec}; its name is recorded in the journal so
+ * values stay readable after the configuration changes.
+ */
+public interface Codec {
+
+	/** zlib deflate at the default level: smallest output, slowest. */
+	Codec DEFLATE = new Codec() {
+		@Override
+		public String name() {
+			return "deflate";
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) {
+			return new DeflaterOutputStream(out);
+		}
+
+		@Override
+		public InputStream decode(InputStream in) {
+			return new InflaterInputStream(in);
+		}
+	};
+
+	/** A byte-oriented LZ77 codec that trades ratio for speed. */
+	Codec LZF = new Codec() {
+		@Override
+		public String name() {
+			return "lzf";
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) {
+			return new LzfOutputStream(out);
+		}
+
+		@Override
+		public InputStream decode(InputStream in) {
+			return new LzfInputStream(in);
+		}
+	};
+
+	/**
+	 * Returns the name recorded in the journal for values written with this
+	 * codec. It must be unique and must not contain spaces, commas or colons.
+	 */
+	String name();
+
+	/**
+	 * Returns a stream that encodes into {@code out}. Closing it must finish
+	 * the encoding and close {@code out}.
+	 */
+	OutputStream encode(OutputStream out) throws IOException;
+
+	/**
+	 * Returns a stream that decodes what {@link #encode} wrote to {@code in}.
+	 */
+	InputStream decode(InputStream in) throws IOException;
+}
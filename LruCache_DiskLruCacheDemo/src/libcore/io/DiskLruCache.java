@@ -25,6 +25,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,17 +36,37 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  ****************************************************************************** 
@@ -69,7 +90,17 @@ import java.util.concurrent.TimeUnit;
  * <p>
  * This cache limits the number of bytes that it will store on the filesystem.
  * When the number of stored bytes exceeds the limit, the cache will remove
- * entries in the background until the limit is satisfied. The limit is not
+ * entries in the background until the size drops to a low watermark somewhat
+ * below the limit, so that eviction runs in batches. Entries may also carry an
+ * expiry time, see {@link Editor#setExpiresAt}; expired entries read as misses
+ * and are reclaimed before any other entry is evicted.
+ * 
+ * <p>
+ * Entries can be grouped into named partitions with their own byte quota and
+ * their own LRU order, see {@link #setPartitionMaxSize} and
+ * {@link #editInPartition}, so that a burst of large values in one partition
+ * does not evict the small values of another. Partitions share the journal,
+ * the executor and the overall limit. The limit is not
  * strict: the cache may temporarily exceed it while waiting for files to be
  * deleted. The limit does not include filesystem overhead or the cache journal
  * so space-sensitive applications should set a conservative limit.
@@ -88,16 +119,24 @@ import java.util.concurrent.TimeUnit;
  * Every {@link #edit} call must be matched by a call to {@link Editor#commit}
  * or {@link Editor#abort}. Committing is atomic: a read observes the full set
  * of values as they were before or after the commit, but never a mix of values.
+ * An interrupted edit may instead end with {@link Editor#abortKeepingPartial},
+ * which keeps the bytes written so far so that the next edit of the key can
+ * append to them, see {@link Editor#newAppendingOutputStream}.
  * 
  * <p>
  * Clients call {@link #get} to read a snapshot of an entry. The read will
  * observe the value at the time that {@link #get} was called. Updates and
- * removals after the call do not impact ongoing reads.
+ * removals after the call do not impact ongoing reads: the files of a replaced
+ * or evicted entry are reclaimed when the last snapshot reading them is closed,
+ * so every snapshot must be closed.
  * 
  * <p>
  * This class is tolerant of some I/O errors. If files are missing from the
- * filesystem, the corresponding entries will be dropped from the cache. If an
- * error occurs while writing a cache value, the edit will fail silently.
+ * filesystem, the corresponding entries will be dropped from the cache. The
+ * CRC32 of every value, as stored, is recorded when it is written; a value that no longer
+ * matches it is dropped on first read, see
+ * {@link #setStreamingVerification}. If an error occurs while writing a cache
+ * value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
  * 
@@ -110,15 +149,50 @@ public final class DiskLruCache implements Closeable {
 	static final String JOURNAL_FILE_TMP = "journal.tmp";
 	static final String MAGIC = "libcore.io.DiskLruCache";
 	static final String VERSION_1 = "1";
+	static final String ARCHIVE_MAGIC = "libcore.io.DiskLruCache.archive";
 	static final long ANY_SEQUENCE_NUMBER = -1;
 	private static final String CLEAN = "CLEAN";
 	private static final String DIRTY = "DIRTY";
 	private static final String REMOVE = "REMOVE";
 	private static final String READ = "READ";
+	/** Name of the CLEAN line metadata that lists the values' CRC32s. */
+	private static final String CHECKSUM = "crc";
+	/** Name of the CLEAN line metadata that lists the values' codecs. */
+	private static final String CODEC = "codec";
+	/** Name of the CLEAN line metadata that lists the decoded lengths. */
+	private static final String RAW_LENGTH = "raw";
+	/** Name of the CLEAN line metadata that holds the entry's expiry time. */
+	private static final String EXPIRES = "exp";
+	/** Name of the CLEAN line metadata that holds the entry's partition. */
+	private static final String PARTITION = "part";
+	/** Name of the CLEAN line metadata that lists the shared values' SHA-1s. */
+	private static final String CONTENT_DIGEST = "sha";
+	/** Suffix of the files that hold values shared by content. */
+	private static final String BLOB_SUFFIX = ".blob";
+	/** The name of the partition of entries created by {@link #edit}. */
+	private static final String DEFAULT_PARTITION = "";
+	/** Placeholder for a metadata value that is not known. */
+	private static final String UNKNOWN = "-";
 
 	private static final Charset UTF_8 = Charset.forName("UTF-8");
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+	/** The number of threads that run getAsync() and async edits. */
+	private static final int ASYNC_THREAD_COUNT = 2;
+	/** Once over maxSize, background eviction drains down to this share. */
+	private static final int LOW_WATERMARK_PERCENT = 90;
+	/** The number of entries evicted per journal append and lock hold. */
+	private static final int EVICTION_BATCH_SIZE = 64;
+	/** The number of imported entries published per journal flush. */
+	private static final int IMPORT_BATCH_SIZE = 64;
+	private static final int DELETE_THREAD_COUNT = 2;
+	/** Suffix of evicted value files that are waiting to be deleted. */
+	private static final String TRASH_SUFFIX = ".del";
+	/** Suffix of the values kept by {@link Editor#abortKeepingPartial}. */
+	private static final String PARTIAL_SUFFIX = ".part";
+	/** Kept partial values are dropped, oldest first, beyond this share of maxSize. */
+	private static final int PARTIAL_SIZE_PERCENT = 10;
+
 	/*
 	 * This cache uses a journal file named "journal". A typical journal file
 	 * looks like this: libcore.io.DiskLruCache 1 100 2
@@ -142,8 +216,15 @@ public final class DiskLruCache implements Closeable {
 	 * CLEAN or REMOVE indicate that temporary files may need to be deleted. o
 	 * CLEAN lines track a cache entry that has been successfully published and
 	 * may be read. A publish line is followed by the lengths of each of its
-	 * values. o READ lines track accesses for LRU. o REMOVE lines track entries
-	 * that have been deleted.
+	 * values, optionally followed by name:value metadata such as
+	 * "crc:1c291ca3,-", one comma separated item per value: the CRC32s of the
+	 * files, the codecs of encoded values, their decoded lengths and the SHA-1s
+	 * of values stored in shared "&lt;sha1&gt;.blob" files, and, as a
+	 * single items, the time in milliseconds when the entry expires and the
+	 * name of its partition if it is not the default one. The
+	 * lengths before the metadata are always the sizes of the files, so they
+	 * are what counts against maxSize. o READ lines track
+	 * accesses for LRU. o REMOVE lines track entries that have been deleted.
 	 * 
 	 * The journal file is appended to as cache operations occur. The journal
 	 * may occasionally be compacted by dropping redundant lines. A temporary
@@ -171,15 +252,60 @@ public final class DiskLruCache implements Closeable {
 	private final File journalFile;
 	private final File journalFileTmp;
 	private final int appVersion;
-	private final long maxSize;
+	private long maxSize;
 	private final int valueCount;
 	private long size = 0;
+	private volatile boolean streamingVerification;
+	/** Expiry applied by commits that don't set one, or 0 for none. */
+	private long timeToLive;
+	/** A lower bound of the entries' expiry times. */
+	private long earliestExpiry = Long.MAX_VALUE;
+	/** The codec applied to new values for each index, or null. */
+	private final Codec[] codecs;
+	/** Codecs by name, for decoding values written under any configuration. */
+	private final Map<String, Codec> knownCodecs = new ConcurrentHashMap<String, Codec>();
 	private Writer journalWriter;
 	/**
 	 * 定义一个LinkedHashMap 同样是将最近访问量最少的缓存先清除掉
+	 * 
+	 * This is the index of all entries. Their LRU order is approximated per
+	 * partition by a CLOCK ring, see {@link Partition#entries}.
 	 */
 	private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<String, Entry>(
-			0, 0.75f, true);
+			0, 0.75f, false);
+	private final Map<String, Partition> partitions = new HashMap<String, Partition>();
+	private final Partition defaultPartition = partition(DEFAULT_PARTITION);
+	/** True if partitions may exceed their quota while the cache has room. */
+	private boolean borrowing;
+	/** Recent request counts for admission, or null to admit every edit. */
+	private FrequencySketch admissionSketch;
+	private EvictionListener evictionListener;
+	/** True if values written from now on are stored once per content. */
+	private boolean deduplicating;
+	/**
+	 * The number of entry values that share each blob, by its SHA-1. Blobs are
+	 * counted against {@link #size} once, and deleted with their last value.
+	 */
+	private final Map<String, Integer> blobReferences = new HashMap<String, Integer>();
+	/**
+	 * The open snapshots by the value files they may still have to open. A
+	 * file that one of them needs is moved aside instead of being replaced or
+	 * deleted, see {@link #pinForReaders}.
+	 */
+	private final Map<File, List<Snapshot>> readersByFile = new HashMap<File, List<Snapshot>>();
+	/**
+	 * The number of open snapshots reading each file that was moved aside for
+	 * them. The file is deleted when the last of them is closed.
+	 */
+	private final Map<File, Integer> pinnedFiles = new HashMap<File, Integer>();
+	/**
+	 * The values of interrupted edits, by key, oldest first. They are not
+	 * recorded in the journal and don't count against {@link #size}; they are
+	 * capped separately by {@link #partialSize} and only live while the cache
+	 * is open.
+	 */
+	private final LinkedHashMap<String, Partial> partials = new LinkedHashMap<String, Partial>();
+	private long partialSize;
 	private int redundantOpCount;
 
 	/**
@@ -290,20 +416,55 @@ public final class DiskLruCache implements Closeable {
 	/** This cache uses a single background thread to evict entries. */
 	private final ExecutorService executorService = new ThreadPoolExecutor(0,
 			1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	/** Deletes the files of evicted entries outside of the cache lock. */
+	private final ThreadPoolExecutor deleteExecutorService = new ThreadPoolExecutor(
+			DELETE_THREAD_COUNT, DELETE_THREAD_COUNT, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>());
+	/** Runs the blocking work of the async API off the caller's thread. */
+	private final ThreadPoolExecutor asyncExecutorService = new ThreadPoolExecutor(
+			ASYNC_THREAD_COUNT, ASYNC_THREAD_COUNT, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>());
+	{
+		deleteExecutorService.allowCoreThreadTimeOut(true);
+		asyncExecutorService.allowCoreThreadTimeOut(true);
+	}
+	/** True while the evictor drains the cache down to the low watermark. */
+	private boolean draining;
 	private final Callable<Void> cleanupCallable = new Callable<Void>() {
 		@Override
 		public Void call() throws Exception {
-			synchronized (DiskLruCache.this) {
-				if (journalWriter == null) {
-					return null; // closed
+			while (true) {
+				List<File> trash;
+				List<Snapshot> evicted = new ArrayList<Snapshot>();
+				EvictionListener listener;
+				synchronized (DiskLruCache.this) {
+					if (journalWriter == null) {
+						return null; // closed
+					}
+					if (size > maxSize) {
+						draining = true;
+					}
+					listener = evictionListener;
+					trash = evictBatch(listener != null ? evicted : null);
+					if (journalRebuildRequired()) {
+						rebuildJournal();
+						redundantOpCount = 0;
+					}
+				}
+				if (trash == null) {
+					return null;
 				}
-				trimToSize();
-				if (journalRebuildRequired()) {
-					rebuildJournal();
-					redundantOpCount = 0;
+				for (Snapshot snapshot : evicted) {
+					try {
+						listener.onEvicted(snapshot.entry.key, snapshot);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					} finally {
+						snapshot.close();
+					}
 				}
+				deleteAll(trash);
 			}
-			return null;
 		}
 	};
 
@@ -315,6 +476,9 @@ public final class DiskLruCache implements Closeable {
 		this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
 		this.valueCount = valueCount;
 		this.maxSize = maxSize;
+		this.codecs = new Codec[valueCount];
+		knownCodecs.put(Codec.DEFLATE.name(), Codec.DEFLATE);
+		knownCodecs.put(Codec.LZF.name(), Codec.LZF);
 	}
 
 	/**
@@ -411,24 +575,29 @@ public final class DiskLruCache implements Closeable {
 
 		String key = parts[1];
 		if (parts[0].equals(REMOVE) && parts.length == 2) {
-			lruEntries.remove(key);
+			Entry removed = lruEntries.get(key);
+			if (removed != null) {
+				unlink(removed);
+			}
 			return;
 		}
 
 		Entry entry = lruEntries.get(key);
 		if (entry == null) {
-			entry = new Entry(key);
-			lruEntries.put(key, entry);
+			entry = new Entry(key, defaultPartition);
+			link(entry);
 		}
 
-		if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+		if (parts[0].equals(CLEAN) && parts.length >= 2 + valueCount) {
 			entry.readable = true;
 			entry.currentEditor = null;
-			entry.setLengths(copyOfRange(parts, 2, parts.length));
+			entry.sequenceNumber = nextSequenceNumber++;
+			entry.setLengths(copyOfRange(parts, 2, 2 + valueCount));
+			entry.setMetadata(copyOfRange(parts, 2 + valueCount, parts.length));
 		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
 			entry.currentEditor = new Editor(entry);
 		} else if (parts[0].equals(READ) && parts.length == 2) {
-			// this work was already done by calling lruEntries.get()
+			entry.referenced = true;
 		} else {
 			throw new IOException("unexpected journal line: " + line);
 		}
@@ -444,15 +613,37 @@ public final class DiskLruCache implements Closeable {
 			Entry entry = i.next();
 			if (entry.currentEditor == null) {
 				for (int t = 0; t < valueCount; t++) {
-					size += entry.lengths[t];
+					resize(entry, entry.lengths[t], retainValue(entry, t));
+				}
+				if (entry.expiresAt != 0) {
+					earliestExpiry = Math.min(earliestExpiry, entry.expiresAt);
 				}
 			} else {
 				entry.currentEditor = null;
 				for (int t = 0; t < valueCount; t++) {
-					deleteIfExists(entry.getCleanFile(t));
+					if (entry.contentDigests[t] == null) {
+						deleteIfExists(entry.getCleanFile(t));
+					}
 					deleteIfExists(entry.getDirtyFile(t));
 				}
 				i.remove();
+				entry.partition.entries.remove(entry.key);
+			}
+		}
+		// evicted files whose deletion was interrupted by the last shutdown,
+		// values of an interrupted import, partial values of the last session,
+		// and blobs whose last value was dropped without a journal record
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(TRASH_SUFFIX) || name.endsWith(".tmp")
+						|| name.endsWith(PARTIAL_SUFFIX)
+						|| (name.endsWith(BLOB_SUFFIX) && !blobReferences
+								.containsKey(name.substring(0, name.length()
+										- BLOB_SUFFIX.length())))) {
+					file.delete();
+				}
 			}
 		}
 	}
@@ -484,7 +675,11 @@ public final class DiskLruCache implements Closeable {
 				writer.write(DIRTY + ' ' + entry.key + '\n');
 			} else {
 				writer.write(CLEAN + ' ' + entry.key + entry.getLengths()
-						+ '\n');
+						+ entry.getMetadata() + '\n');
+				if (entry.referenced) {
+					// keep the reference bit across compaction
+					writer.write(READ + ' ' + entry.key + '\n');
+				}
 			}
 		}
 
@@ -509,12 +704,16 @@ public final class DiskLruCache implements Closeable {
 
 	/**
 	 * Returns a snapshot of the entry named {@code key}, or null if it doesn't
-	 * exist is not currently readable. If a value is returned, it is moved to
-	 * the head of the LRU queue.
+	 * exist is not currently readable. If a value is returned, its reference
+	 * bit is set so the clock hand will pass over it once.
 	 */
 	public synchronized Snapshot get(String key) throws IOException {
 		checkNotClosed();
 		validateKey(key);
+		if (admissionSketch != null) {
+			// misses count too: they are the candidates for admission
+			admissionSketch.increment(key);
+		}
 		Entry entry = lruEntries.get(key);
 		if (entry == null) {
 			return null;
@@ -524,40 +723,196 @@ public final class DiskLruCache implements Closeable {
 			return null;
 		}
 
-		/*
-		 * Open all streams eagerly to guarantee that we see a single published
-		 * snapshot. If we opened streams lazily then the streams could come
-		 * from different edits.
-		 */
-		InputStream[] ins = new InputStream[valueCount];
-		try {
-			for (int i = 0; i < valueCount; i++) {
-				ins[i] = new FileInputStream(entry.getCleanFile(i));
+		if (entry.isExpired(System.currentTimeMillis())) {
+			if (entry.currentEditor == null) {
+				removeEntry(entry);
 			}
-		} catch (FileNotFoundException e) {
-			// a file must have been deleted manually!
 			return null;
 		}
 
+		Snapshot snapshot = newSnapshot(entry);
+		entry.referenced = true;
 		redundantOpCount++;
 		journalWriter.append(READ + ' ' + key + '\n');
 		if (journalRebuildRequired()) {
 			executorService.submit(cleanupCallable);
 		}
 
-		return new Snapshot(key, entry.sequenceNumber, ins);
+		return snapshot;
+	}
+
+	/**
+	 * Returns true if the entry named {@code key} is readable and hasn't
+	 * expired. Unlike {@link #get} this has no side effects: nothing is
+	 * journaled, the entry's reference bit and its admission count are left
+	 * alone, and an expired entry is not removed.
+	 */
+	public synchronized boolean contains(String key) {
+		checkNotClosed();
+		validateKey(key);
+		Entry entry = lruEntries.get(key);
+		return entry != null && entry.readable
+				&& !entry.isExpired(System.currentTimeMillis());
+	}
+
+	/**
+	 * Looks up {@code key} like {@link #get} on a background thread, and also
+	 * opens and verifies every value of the snapshot there, so that reading
+	 * it does not block on anything but the reads themselves. The future's
+	 * result is null if there is no readable entry; the caller must close a
+	 * snapshot it receives. Cancelling the future closes the snapshot if the
+	 * lookup still produces one.
+	 * 
+	 * @param callback
+	 *            notified on the background thread when the lookup finishes,
+	 *            or null
+	 */
+	public Future<Snapshot> getAsync(final String key,
+			Callback<Snapshot> callback) {
+		return submit(asyncExecutorService, new Callable<Snapshot>() {
+			@Override
+			public Snapshot call() throws IOException {
+				Snapshot snapshot = get(key);
+				if (snapshot != null) {
+					try {
+						for (int i = 0; i < valueCount; i++) {
+							snapshot.open(i);
+						}
+					} catch (IOException e) {
+						snapshot.close();
+						throw e;
+					}
+				}
+				return snapshot;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Runs {@code task} on {@code executor} and reports its outcome to
+	 * {@code callback} if it is not null. A {@link Closeable} result that
+	 * the task produces after the future was cancelled is closed, since
+	 * nobody can receive it. Once the cache is closed the task runs on the
+	 * calling thread, where it fails fast.
+	 */
+	private static <T> Future<T> submit(Executor executor,
+			final Callable<T> task, final Callback<T> callback) {
+		final AtomicReference<T> produced = new AtomicReference<T>();
+		FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				T result = task.call();
+				produced.set(result);
+				return result;
+			}
+		}) {
+			@Override
+			public void run() {
+				super.run();
+				if (isCancelled()) {
+					closeProduced(); // cancelled while the task ran
+				}
+			}
+
+			@Override
+			protected void done() {
+				if (isCancelled()) {
+					closeProduced(); // null unless the task just returned
+					return;
+				}
+				if (callback == null) {
+					return;
+				}
+				try {
+					callback.onSuccess(get());
+				} catch (ExecutionException e) {
+					callback.onFailure(e.getCause());
+				} catch (InterruptedException e) {
+					// done() only runs once the task completed
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			private void closeProduced() {
+				Object result = produced.getAndSet(null);
+				if (result instanceof Closeable) {
+					closeQuietly((Closeable) result);
+				}
+			}
+		};
+		try {
+			executor.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.run(); // closed
+		}
+		return future;
+	}
+
+	private Snapshot newSnapshot(Entry entry) {
+		/*
+		 * Streams are opened lazily by the snapshot. The cache tracks which
+		 * files it may still open, so that they are moved aside rather than
+		 * replaced or deleted and every stream comes from the same published
+		 * edit.
+		 */
+		Snapshot snapshot = new Snapshot(entry, entry.sequenceNumber,
+				entry.lengths.clone(), entry.checksums.clone(),
+				entry.codecs.clone(), entry.rawLengths.clone());
+		for (File file : snapshot.files) {
+			List<Snapshot> readers = readersByFile.get(file);
+			if (readers == null) {
+				readers = new ArrayList<Snapshot>(1);
+				readersByFile.put(file, readers);
+			}
+			readers.add(snapshot);
+		}
+		return snapshot;
 	}
 
 	/**
 	 * Returns an editor for the entry named {@code key}, or null if another
-	 * edit is in progress.
+	 * edit is in progress or the {@link #setAdmissionFilter admission filter}
+	 * turned a new entry away.
 	 */
 	public Editor edit(String key) throws IOException {
-		return edit(key, ANY_SEQUENCE_NUMBER);
+		return edit(key, ANY_SEQUENCE_NUMBER, null);
 	}
 
-	private synchronized Editor edit(String key, long expectedSequenceNumber)
+	/**
+	 * Returns an editor for the entry named {@code key} in the partition named
+	 * {@code partition}, or null if another edit is in progress or the
+	 * admission filter turned a new entry away. An existing
+	 * entry with that key is moved to the partition. Keys are unique across
+	 * partitions.
+	 */
+	public synchronized Editor editInPartition(String partition, String key)
 			throws IOException {
+		validatePartition(partition);
+		return edit(key, ANY_SEQUENCE_NUMBER, partition(partition));
+	}
+
+	/**
+	 * @param partition
+	 *            the partition of the entry, or null to keep an existing entry
+	 *            where it is and create new ones in the default partition
+	 */
+	/**
+	 * Returns an editor for the published entry named {@code key}, or null if
+	 * there is no such entry or another edit is in progress. Values that the
+	 * edit doesn't set keep their current contents.
+	 */
+	synchronized Editor editIfPresent(String key) throws IOException {
+		checkNotClosed();
+		validateKey(key);
+		Entry entry = lruEntries.get(key);
+		if (entry == null || !entry.readable) {
+			return null;
+		}
+		return edit(key, entry.sequenceNumber, null);
+	}
+
+	private synchronized Editor edit(String key, long expectedSequenceNumber,
+			Partition partition) throws IOException {
 		checkNotClosed();
 		validateKey(key);
 		Entry entry = lruEntries.get(key);
@@ -566,10 +921,23 @@ public final class DiskLruCache implements Closeable {
 			return null; // snapshot is stale
 		}
 		if (entry == null) {
-			entry = new Entry(key);
-			lruEntries.put(key, entry);
+			Partition target = partition != null ? partition
+					: defaultPartition;
+			if (admissionSketch != null && !admit(key, target)) {
+				return null;
+			}
+			entry = new Entry(key, target);
+			link(entry);
 		} else if (entry.currentEditor != null) {
 			return null; // another edit is in progress
+		} else if (partition != null && partition != entry.partition) {
+			long length = 0;
+			for (int i = 0; i < valueCount; i++) {
+				length += entry.lengths[i];
+			}
+			resize(entry, -length, 0);
+			entry.moveTo(partition);
+			resize(entry, length, 0);
 		}
 
 		Editor editor = new Editor(entry);
@@ -592,10 +960,172 @@ public final class DiskLruCache implements Closeable {
 	 * Returns the maximum number of bytes that this cache should use to store
 	 * its data.
 	 */
-	public long maxSize() {
+	public synchronized long maxSize() {
 		return maxSize;
 	}
 
+	/**
+	 * Changes the maximum number of bytes the cache can store. If the cache is
+	 * now over the limit, it is trimmed in batches in the background.
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.maxSize = maxSize;
+		executorService.submit(cleanupCallable);
+	}
+
+	/**
+	 * Chooses when values are checked against their recorded CRC32. By default
+	 * a value is read once in full on its first access after it was loaded from
+	 * the journal, before its stream or channel is returned, so a corrupt value
+	 * is never handed to a decoder. With streaming verification the check runs
+	 * as the stream returned by {@link Snapshot#getInputStream} is read instead,
+	 * and fails at its end; channels and mapped buffers are then unchecked.
+	 * Either way a mismatch drops the entry and throws an {@code IOException},
+	 * so the next {@link #get} is a miss.
+	 */
+	public void setStreamingVerification(boolean streamingVerification) {
+		this.streamingVerification = streamingVerification;
+	}
+
+	/**
+	 * Gives the partition named {@code partition} its own quota of
+	 * {@code maxSize} bytes. Partitions without a quota, including the default
+	 * one, are bounded by the cache's {@link #maxSize} only.
+	 */
+	public synchronized void setPartitionMaxSize(String partition, long maxSize) {
+		validatePartition(partition);
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		partition(partition).quota = maxSize;
+		executorService.submit(cleanupCallable);
+	}
+
+	/**
+	 * Lets partitions grow beyond their quota while the cache as a whole is
+	 * under {@link #maxSize}. Once the cache is full, the partitions that
+	 * borrowed the most are trimmed first.
+	 */
+	public synchronized void setBorrowing(boolean borrowing) {
+		this.borrowing = borrowing;
+		executorService.submit(cleanupCallable);
+	}
+
+	/**
+	 * Returns the number of bytes stored in the partition named
+	 * {@code partition}.
+	 */
+	public synchronized long size(String partition) {
+		Partition p = partitions.get(partition);
+		return p != null ? p.size : 0;
+	}
+
+	/**
+	 * Turns TinyLFU admission on or off. While it is on, a new entry is only
+	 * created once the cache is nearly full if its key was requested with
+	 * {@link #get} more often recently than the key of the entry it would
+	 * evict. This keeps values that are fetched once from churning the disk
+	 * and pushing out popular ones. Edits of existing entries are not
+	 * filtered.
+	 */
+	public synchronized void setAdmissionFilter(boolean enabled) {
+		if (!enabled) {
+			admissionSketch = null;
+		} else if (admissionSketch == null) {
+			admissionSketch = new FrequencySketch(lruEntries.size());
+		}
+	}
+
+	/**
+	 * Returns true if a new entry for {@code key} may be created in
+	 * {@code partition}. Everything is admitted while there is room; after
+	 * that the candidate must be more popular than the next victim of the
+	 * partition. Looking for the victim leaves the clock hand and the
+	 * reference bits alone, so a rejected candidate does not age the entries
+	 * it was compared with.
+	 */
+	private boolean admit(String key, Partition partition) {
+		admissionSketch.ensureCapacity(lruEntries.size());
+		boolean full = size >= lowWatermark(maxSize)
+				|| (partition.quota != -1 && !borrowing
+						&& partition.size >= lowWatermark(partition.quota));
+		if (!full || partition.entries.isEmpty()) {
+			return true;
+		}
+		Entry victim = partition.peekEvictionCandidate();
+		return victim == null
+				|| admissionSketch.frequency(key) > admissionSketch
+						.frequency(victim.key);
+	}
+
+	/**
+	 * Turns content deduplication on or off for values written from now on.
+	 * While it is on, values are named by the SHA-1 of their stored bytes and
+	 * values with equal bytes share one file, which is counted against
+	 * {@link #maxSize} once and deleted when its last entry goes.
+	 */
+	public synchronized void setDeduplication(boolean enabled) {
+		this.deduplicating = enabled;
+	}
+
+	/**
+	 * Sets the listener that is told about entries evicted to make room, or
+	 * null for none.
+	 */
+	public synchronized void setEvictionListener(EvictionListener listener) {
+		this.evictionListener = listener;
+	}
+
+	/**
+	 * Sets how long entries stay fresh after an edit that doesn't call
+	 * {@link Editor#setExpiresAt} is committed, or 0 to keep them until they
+	 * are evicted.
+	 */
+	public synchronized void setTimeToLive(long timeToLiveMillis) {
+		if (timeToLiveMillis < 0) {
+			throw new IllegalArgumentException("timeToLive < 0");
+		}
+		this.timeToLive = timeToLiveMillis;
+	}
+
+	/**
+	 * Sets the codec that encodes values written to {@code index} from now on,
+	 * or null to store them as they are. Values already in the cache keep the
+	 * codec they were written with. The encoded length is what counts against
+	 * {@link #maxSize}.
+	 */
+	public synchronized void setCodec(int index, Codec codec) {
+		if (codec != null) {
+			String name = codec.name();
+			if (name.length() == 0 || name.equals(UNKNOWN)
+					|| name.contains(" ") || name.contains(",")
+					|| name.contains(":") || name.contains("\n")) {
+				throw new IllegalArgumentException("bad codec name: " + name);
+			}
+			knownCodecs.put(name, codec);
+		}
+		codecs[index] = codec;
+	}
+
+	/**
+	 * Returns the decoding stream for a value written with the codec named
+	 * {@code codecName}, or {@code in} itself if the value is not encoded.
+	 */
+	private InputStream decode(String codecName, InputStream in)
+			throws IOException {
+		if (codecName == null) {
+			return in;
+		}
+		Codec codec = knownCodecs.get(codecName);
+		if (codec == null) {
+			throw new IOException("unknown codec: " + codecName);
+		}
+		return codec.decode(in);
+	}
+
 	/**
 	 * Returns the number of bytes currently being used to store the values in
 	 * this cache. This may be greater than the max size if a background
@@ -625,19 +1155,64 @@ public final class DiskLruCache implements Closeable {
 			}
 		}
 
+		// values taken over from an interrupted edit but not appended to
+		if (editor.partial != null) {
+			editor.partial.delete();
+			editor.partial = null;
+		}
+		if (success) {
+			// a partial value kept for the old value is useless now
+			dropPartial(entry.key);
+			if (editor.expiresAt != -1) {
+				entry.expiresAt = editor.expiresAt;
+			} else {
+				entry.expiresAt = timeToLive != 0 ? System.currentTimeMillis()
+						+ timeToLive : 0;
+			}
+		}
 		for (int i = 0; i < valueCount; i++) {
 			File dirty = entry.getDirtyFile(i);
 			if (success) {
 				//如果之前这个文件存在
 				if (dirty.exists()) {
+					long oldLength = entry.lengths[i];
+					long newLength = dirty.length();
+					String oldDigest = entry.contentDigests[i];
+					File old = entry.getCleanFile(i);
+					long freed = entry.readable ? releaseValue(entry, i) : 0;
+					MessageDigest digest = editor.contentDigests[i];
+					entry.contentDigests[i] = digest != null ? toHex(digest
+							.digest()) : null;
 					//就将dirty文件更名为clean文件（或者是说将这个文件指向新的路径） 来说明写入成功
 					File clean = entry.getCleanFile(i);
-					dirty.renameTo(clean);
-					long oldLength = entry.lengths[i];
-					long newLength = clean.length();
+					if (entry.readable
+							&& (oldDigest == null || freed != 0
+									&& !old.equals(clean))) {
+						// open snapshots keep reading the value being replaced
+						pinForReaders(old, entry.getTrashFile(i));
+					}
+					if (entry.contentDigests[i] != null && clean.exists()) {
+						dirty.delete(); // another value already has these bytes
+					} else {
+						dirty.renameTo(clean);
+					}
+					if (oldDigest != null ? freed != 0 && !old.equals(clean)
+							: entry.contentDigests[i] != null) {
+						old.delete();
+					}
 					entry.lengths[i] = newLength;
+					CRC32 checksum = editor.checksums[i];
+					entry.checksums[i] = checksum != null ? checksum.getValue()
+							: -1;
+					// freshly written bytes need no verification
+					entry.verified[i] = checksum != null;
+					Codec codec = editor.codecs[i];
+					entry.codecs[i] = codec != null ? codec.name() : null;
+					entry.rawLengths[i] = codec != null ? editor.rawLengths[i]
+							: -1;
 					//这里是讲我们缓存的大小做重新计算
-					size = size - oldLength + newLength;
+					resize(entry, newLength - oldLength, retainValue(entry, i)
+							- freed);
 				}
 			} else {
 				deleteIfExists(dirty);
@@ -650,18 +1225,23 @@ public final class DiskLruCache implements Closeable {
 			entry.readable = true;
 			//在journal文件中写入这一行标记，代表写入成功
 			journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths()
-					+ '\n');
+					+ entry.getMetadata() + '\n');
 			if (success) {
 				entry.sequenceNumber = nextSequenceNumber++;
 			}
+			if (entry.expiresAt != 0) {
+				earliestExpiry = Math.min(earliestExpiry, entry.expiresAt);
+			}
 		} else {
 			//在缓存的集合中移除对应key的文件
-			lruEntries.remove(entry.key);
+			unlink(entry);
 			//如果失败，就在journal文件中写入一个remove文件
 			journalWriter.write(REMOVE + ' ' + entry.key + '\n');
 		}
 
-		if (size > maxSize || journalRebuildRequired()) {
+		if (size > maxSize || isOverQuota(entry.partition)
+				|| journalRebuildRequired()
+				|| System.currentTimeMillis() >= earliestExpiry) {
 			executorService.submit(cleanupCallable);
 		}
 	}
@@ -678,35 +1258,103 @@ public final class DiskLruCache implements Closeable {
 
 	/**
 	 * Drops the entry for {@code key} if it exists and can be removed. Entries
-	 * actively being edited cannot be removed.
+	 * actively being edited cannot be removed. Open snapshots of the entry
+	 * remain readable.
 	 * 
 	 * @return true if an entry was removed.
 	 */
 	public synchronized boolean remove(String key) throws IOException {
 		checkNotClosed();
 		validateKey(key);
+		dropPartial(key);
 		Entry entry = lruEntries.get(key);
 		if (entry == null || entry.currentEditor != null) {
 			return false;
 		}
+		removeEntry(entry);
+		return true;
+	}
+
+	/**
+	 * Forgets the partial values kept for {@code key} and deletes their files.
+	 */
+	private void dropPartial(String key) {
+		Partial partial = partials.remove(key);
+		if (partial != null) {
+			partialSize -= partial.size();
+			partial.delete();
+		}
+	}
+
+	/**
+	 * Keeps {@code partial} for the next edit of its key, dropping the oldest
+	 * partial values if they no longer fit.
+	 */
+	private void keepPartial(Partial partial) {
+		dropPartial(partial.key);
+		partials.put(partial.key, partial);
+		partialSize += partial.size();
+		long limit = percentOf(maxSize, PARTIAL_SIZE_PERCENT);
+		Iterator<Partial> i = partials.values().iterator();
+		while (partialSize > limit && i.hasNext()) {
+			Partial oldest = i.next();
+			i.remove();
+			partialSize -= oldest.size();
+			oldest.delete();
+		}
+	}
 
+	/**
+	 * Unlinks {@code entry} from the index right away. Files that its open
+	 * snapshots have yet to read are moved aside until they are closed.
+	 */
+	private void removeEntry(Entry entry) throws IOException {
 		for (int i = 0; i < valueCount; i++) {
-			File file = entry.getCleanFile(i);
-			if (!file.delete()) {
-				throw new IOException("failed to delete " + file);
+			long freed = releaseValue(entry, i);
+			if (entry.contentDigests[i] == null || freed != 0) {
+				File clean = entry.getCleanFile(i);
+				if (!pinForReaders(clean, entry.getTrashFile(i))) {
+					// a file that is already gone was deleted manually
+					clean.delete();
+				}
 			}
-			size -= entry.lengths[i];
+			resize(entry, -entry.lengths[i], -freed);
 			entry.lengths[i] = 0;
 		}
 
 		redundantOpCount++;
-		journalWriter.append(REMOVE + ' ' + key + '\n');
-		lruEntries.remove(key);
+		journalWriter.append(REMOVE + ' ' + entry.key + '\n');
+		unlink(entry);
 
 		if (journalRebuildRequired()) {
 			executorService.submit(cleanupCallable);
 		}
+	}
 
+	/**
+	 * Moves {@code file}, which is about to be replaced or deleted, to
+	 * {@code aside} if an open snapshot has yet to open it, and points those
+	 * snapshots there. Only renames happen under the lock; the moved file is
+	 * deleted when the last of them is closed. Returns true if it was moved.
+	 */
+	private boolean pinForReaders(File file, File aside) {
+		List<Snapshot> readers = readersByFile.remove(file);
+		if (readers == null) {
+			return false;
+		}
+		List<Snapshot> needing = new ArrayList<Snapshot>(readers.size());
+		for (Snapshot reader : readers) {
+			if (reader.needs(file)) {
+				needing.add(reader);
+			}
+		}
+		if (needing.isEmpty() || !file.renameTo(aside)) {
+			return false;
+		}
+		for (Snapshot reader : needing) {
+			reader.repoint(file, aside);
+		}
+		pinnedFiles.put(aside, needing.size());
 		return true;
 	}
 
@@ -724,11 +1372,19 @@ public final class DiskLruCache implements Closeable {
 	}
 
 	/**
-	 * Force buffered operations to the filesystem.
+	 * Force buffered operations to the filesystem. Eviction is left to the
+	 * background evictor.
 	 */
 	public synchronized void flush() throws IOException {
 		checkNotClosed();
-		trimToSize();
+		boolean trim = size > maxSize
+				|| System.currentTimeMillis() >= earliestExpiry;
+		for (Partition partition : partitions.values()) {
+			trim |= isOverQuota(partition);
+		}
+		if (trim) {
+			executorService.submit(cleanupCallable);
+		}
 		journalWriter.flush();
 	}
 
@@ -744,97 +1400,1092 @@ public final class DiskLruCache implements Closeable {
 				entry.currentEditor.abort();
 			}
 		}
+		for (Partial partial : partials.values()) {
+			partial.delete();
+		}
+		partials.clear();
+		partialSize = 0;
 		trimToSize();
 		journalWriter.close();
 		journalWriter = null;
+		// queued deletions and async operations still run; the latter fail
+		asyncExecutorService.shutdown();
+		deleteExecutorService.shutdown();
 	}
 	/**
 	 * 当文件缓存大于我们自己定义的maxSize的时候，请将最不常用的一个清除掉，直到size<maxSize
 	 * @throws IOException
 	 */
 	private void trimToSize() throws IOException {
-		while (size > maxSize) {
-			// Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-			final Map.Entry<String, Entry> toEvict = lruEntries.entrySet()
-					.iterator().next();
-			remove(toEvict.getKey());
+		while (true) {
+			if (size > maxSize) {
+				draining = true;
+			}
+			Partition partition = partitionToTrim();
+			if (partition == null) {
+				return;
+			}
+			Entry toEvict = partition.nextEvictionCandidate();
+			if (toEvict == null) {
+				return; // everything left is being edited
+			}
+			removeEntry(toEvict);
 		}
 	}
 
 	/**
-	 * Closes the cache and deletes all of its stored values. This will delete
-	 * all files in the cache directory including files that weren't created by
-	 * the cache.
+	 * Evicts every expired entry once the earliest expiry has passed, then up
+	 * to {@link #EVICTION_BATCH_SIZE} entries from the partitions returned by
+	 * {@link #partitionToTrim}. Their REMOVE records are written
+	 * in a single append and their files are renamed aside, to be deleted by
+	 * {@link #deleteAll} once the lock is released. Renaming keeps the clean
+	 * file names free for new edits of the same keys.
+	 * 
+	 * @return the renamed files, or null if nothing was evicted
 	 */
-	public void delete() throws IOException {
-		close();
-		deleteContents(directory);
-	}
-
-	private void validateKey(String key) {
-		if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
-			throw new IllegalArgumentException(
-					"keys must not contain spaces or newlines: \"" + key + "\"");
+	private List<File> evictBatch(List<Snapshot> evicted) throws IOException {
+		List<File> trash = new ArrayList<File>();
+		StringBuilder removes = new StringBuilder();
+
+		long now = System.currentTimeMillis();
+		if (now >= earliestExpiry) {
+			earliestExpiry = Long.MAX_VALUE;
+			for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
+				if (entry.currentEditor == null && entry.isExpired(now)) {
+					evict(entry, trash, removes, null);
+				} else if (entry.expiresAt != 0) {
+					earliestExpiry = Math.min(earliestExpiry, entry.expiresAt);
+				}
+			}
 		}
-	}
 
-	private static String inputStreamToString(InputStream in)
-			throws IOException {
-		return readFully(new InputStreamReader(in, UTF_8));
+		for (int n = 0; n < EVICTION_BATCH_SIZE; n++) {
+			Partition partition = partitionToTrim();
+			if (partition == null) {
+				break;
+			}
+			Entry toEvict = partition.nextEvictionCandidate();
+			if (toEvict == null) {
+				// everything left is being edited; retry after the next commit
+				partition.draining = false;
+				draining = false;
+				break;
+			}
+			evict(toEvict, trash, removes, evicted);
+		}
+		if (removes.length() == 0) {
+			return null;
+		}
+		journalWriter.append(removes);
+		return trash;
 	}
 
 	/**
-	 * A snapshot of the values for an entry.
+	 * @param evicted
+	 *            receives a snapshot of the entry for the eviction listener,
+	 *            or null if there is none
 	 */
-	public final class Snapshot implements Closeable {
-		private final String key;
-		private final long sequenceNumber;
-		private final InputStream[] ins;
-
-		private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
-			this.key = key;
-			this.sequenceNumber = sequenceNumber;
-			this.ins = ins;
-		}
-
-		/**
-		 * Returns an editor for this snapshot's entry, or null if either the
-		 * entry has changed since this snapshot was created or if another edit
-		 * is in progress.
-		 */
-		public Editor edit() throws IOException {
-			return DiskLruCache.this.edit(key, sequenceNumber);
-		}
-
-		/**
-		 * 根据索引值，返回一个文件的流 Returns the unbuffered stream with the value for
-		 * {@code index}.
-		 */
-		public InputStream getInputStream(int index) {
-			return ins[index];
-		}
-
-		/**
-		 * Returns the string value for {@code index}.
-		 */
-		public String getString(int index) throws IOException {
-			return inputStreamToString(getInputStream(index));
+	private void evict(Entry toEvict, List<File> trash, StringBuilder removes,
+			List<Snapshot> evicted) {
+		if (evicted != null) {
+			evicted.add(newSnapshot(toEvict));
 		}
-
-		@Override
-		public void close() {
-			for (InputStream in : ins) {
-				closeQuietly(in);
+		for (int i = 0; i < valueCount; i++) {
+			long freed = releaseValue(toEvict, i);
+			File clean = toEvict.getCleanFile(i);
+			File doomed = toEvict.getTrashFile(i);
+			// a file that open snapshots still need is deleted when they close
+			if ((toEvict.contentDigests[i] == null || freed != 0)
+					&& !pinForReaders(clean, doomed) && clean.renameTo(doomed)) {
+				trash.add(doomed);
 			}
+			resize(toEvict, -toEvict.lengths[i], -freed);
+			toEvict.lengths[i] = 0;
 		}
+		redundantOpCount++;
+		removes.append(REMOVE).append(' ').append(toEvict.key).append('\n');
+		unlink(toEvict);
 	}
 
 	/**
-	 * Edits the values for an entry.
+	 * Returns the partition to evict the next entry from, or null if nothing
+	 * needs to be trimmed. A partition that goes over its own quota is
+	 * drained to its low watermark, unless borrowing lets it use the room the
+	 * cache has left. When the cache as a whole is draining, the partition
+	 * using the largest share of its quota gives up entries first, so
+	 * borrowers pay back before anyone else.
 	 */
-	public final class Editor {
+	private Partition partitionToTrim() {
+		for (Partition partition : partitions.values()) {
+			if (isOverQuota(partition)) {
+				partition.draining = true;
+			}
+			if (partition.draining) {
+				if (partition.size > lowWatermark(partition.quota)
+						&& !partition.entries.isEmpty()) {
+					return partition;
+				}
+				partition.draining = false;
+			}
+		}
+		if (draining) {
+			if (size > lowWatermark(maxSize)) {
+				Partition fullest = null;
+				for (Partition partition : partitions.values()) {
+					if (!partition.entries.isEmpty()
+							&& (fullest == null || (double) partition.size
+									/ partition.maxSize() > (double) fullest.size
+									/ fullest.maxSize())) {
+						fullest = partition;
+					}
+				}
+				if (fullest != null) {
+					return fullest;
+				}
+			}
+			draining = false;
+		}
+		return null;
+	}
+
+	private boolean isOverQuota(Partition partition) {
+		return partition.quota != -1 && partition.size > partition.quota
+				&& !(borrowing && size <= maxSize);
+	}
+
+	private static long lowWatermark(long maxSize) {
+		return percentOf(maxSize, LOW_WATERMARK_PERCENT);
+	}
+
+	/**
+	 * Returns {@code percent} percent of {@code value}, rounded down. Small
+	 * values are not truncated to 0 and large ones do not overflow.
+	 */
+	private static long percentOf(long value, int percent) {
+		return value / 100 * percent + value % 100 * percent / 100;
+	}
+
+	/** Adds {@code entry} to the index and to its partition's clock ring. */
+	private void link(Entry entry) {
+		lruEntries.put(entry.key, entry);
+		entry.partition.entries.put(entry.key, entry);
+	}
+
+	private void unlink(Entry entry) {
+		lruEntries.remove(entry.key);
+		entry.partition.entries.remove(entry.key);
+	}
+
+	/**
+	 * Adds {@code delta} bytes to the size of the entry's partition and
+	 * {@code diskDelta} bytes to the cache's size. They differ for shared
+	 * values, which count against every partition that uses them but against
+	 * the cache only once.
+	 */
+	private void resize(Entry entry, long delta, long diskDelta) {
+		size += diskDelta;
+		entry.partition.size += delta;
+	}
+
+	/**
+	 * Counts a reference to the value at {@code index} of {@code entry} and
+	 * returns the number of bytes it adds to the disk.
+	 */
+	private long retainValue(Entry entry, int index) {
+		String digest = entry.contentDigests[index];
+		if (digest == null) {
+			return entry.lengths[index];
+		}
+		Integer references = blobReferences.get(digest);
+		blobReferences.put(digest, references == null ? 1 : references + 1);
+		return references == null ? entry.lengths[index] : 0;
+	}
+
+	/**
+	 * Drops a reference to the value at {@code index} of {@code entry} and
+	 * returns the number of bytes that the caller may free on disk: all of
+	 * them unless the value is a blob that other values still share.
+	 */
+	private long releaseValue(Entry entry, int index) {
+		String digest = entry.contentDigests[index];
+		if (digest == null) {
+			return entry.lengths[index];
+		}
+		int references = blobReferences.remove(digest) - 1;
+		if (references > 0) {
+			blobReferences.put(digest, references);
+			return 0;
+		}
+		return entry.lengths[index];
+	}
+
+	/** Returns the partition named {@code name}, creating it if necessary. */
+	private Partition partition(String name) {
+		Partition partition = partitions.get(name);
+		if (partition == null) {
+			partition = new Partition(name);
+			partitions.put(name, partition);
+		}
+		return partition;
+	}
+
+	/**
+	 * Deletes {@code files} on the delete threads and waits for them.
+	 */
+	private void deleteAll(List<File> files) throws Exception {
+		int chunkCount = Math.min(DELETE_THREAD_COUNT, files.size());
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(chunkCount);
+		for (int c = 0; c < chunkCount; c++) {
+			final List<File> chunk = files.subList(
+					files.size() * c / chunkCount, files.size() * (c + 1)
+							/ chunkCount);
+			Callable<Void> task = new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (File file : chunk) {
+						file.delete();
+					}
+					return null;
+				}
+			};
+			try {
+				futures.add(deleteExecutorService.submit(task));
+			} catch (RejectedExecutionException e) {
+				task.call(); // closed while these were being evicted
+			}
+		}
+		for (Future<Void> future : futures) {
+			future.get();
+		}
+	}
+
+	/**
+	 * Closes the cache and deletes all of its stored values. This will delete
+	 * all files in the cache directory including files that weren't created by
+	 * the cache.
+	 */
+	public void delete() throws IOException {
+		close();
+		deleteContents(directory);
+	}
+
+	/**
+	 * Writes every readable entry to {@code target} as one sequential archive
+	 * that {@link #importFrom} can load into another cache. Values are copied
+	 * with {@link FileChannel#transferTo}, so they don't pass through the Java
+	 * heap where the platform allows it. The cache stays usable meanwhile:
+	 * each entry is written as it is when the export reaches it, and entries
+	 * created after the export began are left out.
+	 * 
+	 * <p>
+	 * The archive is a sequence of records, each a 4 byte big-endian length
+	 * followed by that many bytes of ASCII text. The first record is
+	 * "libcore.io.DiskLruCache.archive 1 appVersion valueCount". Each
+	 * following record is the CLEAN journal line of an entry without its
+	 * "CLEAN " prefix, and is followed by the entry's values back to back.
+	 * 
+	 * @return the number of entries written
+	 */
+	public int exportTo(WritableByteChannel target) throws IOException {
+		List<Entry> entries;
+		synchronized (this) {
+			checkNotClosed();
+			entries = new ArrayList<Entry>(lruEntries.values());
+		}
+		writeRecord(target, ARCHIVE_MAGIC + ' ' + VERSION_1 + ' ' + appVersion
+				+ ' ' + valueCount);
+		int exported = 0;
+		for (Entry entry : entries) {
+			// one entry at a time, so that open files don't grow with the
+			// number of entries
+			Snapshot snapshot;
+			String metadata;
+			synchronized (this) {
+				checkNotClosed();
+				if (lruEntries.get(entry.key) != entry || !entry.readable
+						|| entry.isExpired(System.currentTimeMillis())) {
+					continue; // removed, replaced or expired since
+				}
+				snapshot = newSnapshot(entry);
+				metadata = entry.getMetadata();
+			}
+			try {
+				StringBuilder record = new StringBuilder(entry.key);
+				long[] lengths = new long[valueCount];
+				try {
+					for (int i = 0; i < valueCount; i++) {
+						lengths[i] = snapshot.getChannel(i).size();
+						record.append(' ').append(lengths[i]);
+					}
+				} catch (IOException e) {
+					synchronized (this) {
+						if (lruEntries.get(entry.key) == entry
+								&& entry.sequenceNumber == snapshot.sequenceNumber) {
+							throw e; // not a missing or corrupt value
+						}
+					}
+					continue; // dropped or replaced since the export began
+				}
+				writeRecord(target, record.append(metadata).toString());
+				for (int i = 0; i < valueCount; i++) {
+					if (snapshot.transferTo(i, target) != lengths[i]) {
+						throw new IOException("value changed during export: "
+								+ entry.key);
+					}
+				}
+				exported++;
+			} finally {
+				snapshot.close();
+			}
+		}
+		return exported;
+	}
+
+	/**
+	 * Adds the entries of an archive written by {@link #exportTo} to this
+	 * cache. Instead of recording an edit per entry, values are written to
+	 * temporary files and published in batches: a batch's CLEAN lines are
+	 * appended to the journal and flushed before its files are renamed into
+	 * place, so an interrupted import leaves no value files that the journal
+	 * doesn't know about. Entries that this cache already has, and entries
+	 * that have expired, are skipped. Values are checked against their
+	 * checksums when they are first read.
+	 * 
+	 * @return the number of entries imported
+	 * @throws IOException
+	 *             if the archive is malformed or was written for another
+	 *             app version or value count. Entries imported before the
+	 *             problem was found are kept.
+	 */
+	public int importFrom(ReadableByteChannel source) throws IOException {
+		String header = readRecord(source);
+		if (!header.equals(ARCHIVE_MAGIC + ' ' + VERSION_1 + ' ' + appVersion
+				+ ' ' + valueCount)) {
+			throw new IOException("unexpected archive header: " + header);
+		}
+		int imported = 0;
+		List<Entry> batch = new ArrayList<Entry>();
+		try {
+			String record;
+			while ((record = readRecord(source)) != null) {
+				Entry entry = importEntry(record, source);
+				if (entry != null) {
+					batch.add(entry);
+					imported++;
+				}
+				if (batch.size() == IMPORT_BATCH_SIZE) {
+					publishImported(batch);
+					batch.clear();
+				}
+			}
+		} finally {
+			publishImported(batch);
+		}
+		return imported;
+	}
+
+	/**
+	 * Imports the entry described by the archive record {@code record}, whose
+	 * values follow in {@code source}. Returns the entry, still reserved and
+	 * with its values in dirty files, or null if it was skipped.
+	 */
+	private Entry importEntry(String record, ReadableByteChannel source)
+			throws IOException {
+		String[] parts = record.split(" ");
+		if (parts.length < 1 + valueCount) {
+			throw new IOException("unexpected archive record: " + record);
+		}
+		Entry entry = null;
+		synchronized (this) {
+			checkNotClosed();
+			validateKey(parts[0]);
+			if (!lruEntries.containsKey(parts[0])) {
+				entry = new Entry(parts[0], defaultPartition);
+				entry.setLengths(copyOfRange(parts, 1, 1 + valueCount));
+				entry.setMetadata(copyOfRange(parts, 1 + valueCount,
+						parts.length));
+			}
+			if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+				// setMetadata() may have put it on a partition's clock ring
+				entry.partition.entries.remove(entry.key);
+				entry = null;
+			}
+			if (entry != null) {
+				// reserved like an edit, but without a DIRTY record
+				entry.currentEditor = new Editor(entry);
+				link(entry);
+			}
+		}
+		if (entry == null) {
+			for (long length : parseLengths(parts)) {
+				transferFully(source, null, length);
+			}
+			return null;
+		}
+
+		boolean success = false;
+		try {
+			for (int i = 0; i < valueCount; i++) {
+				FileOutputStream out = new FileOutputStream(
+						entry.getDirtyFile(i));
+				try {
+					transferFully(source, out.getChannel(), entry.lengths[i]);
+				} finally {
+					out.close();
+				}
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				synchronized (this) {
+					entry.currentEditor = null;
+					for (int i = 0; i < valueCount; i++) {
+						entry.getDirtyFile(i).delete();
+					}
+					unlink(entry);
+				}
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Journals and then publishes imported entries. Entries that close()
+	 * already aborted are left alone.
+	 */
+	private synchronized void publishImported(List<Entry> batch)
+			throws IOException {
+		if (journalWriter == null || batch.isEmpty()) {
+			return; // closed, which discarded the dirty files
+		}
+		for (Entry entry : batch) {
+			journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths()
+					+ entry.getMetadata() + '\n');
+		}
+		// a crash from here on leaves journaled entries whose files are
+		// missing, which read as misses, rather than unknown files
+		journalWriter.flush();
+		for (Entry entry : batch) {
+			entry.currentEditor = null;
+			for (int i = 0; i < valueCount; i++) {
+				File dirty = entry.getDirtyFile(i);
+				File clean = entry.getCleanFile(i);
+				if (entry.contentDigests[i] != null && clean.exists()) {
+					dirty.delete(); // another value already has these bytes
+				} else {
+					dirty.renameTo(clean);
+				}
+				resize(entry, entry.lengths[i], retainValue(entry, i));
+			}
+			entry.readable = true;
+			entry.sequenceNumber = nextSequenceNumber++;
+			if (entry.expiresAt != 0) {
+				earliestExpiry = Math.min(earliestExpiry, entry.expiresAt);
+			}
+		}
+		executorService.submit(cleanupCallable);
+	}
+
+	/** Returns the value lengths of a skipped archive record. */
+	private long[] parseLengths(String[] parts) throws IOException {
+		long[] lengths = new long[valueCount];
+		for (int i = 0; i < valueCount; i++) {
+			try {
+				lengths[i] = Long.parseLong(parts[1 + i]);
+			} catch (NumberFormatException e) {
+				throw new IOException("unexpected archive record: "
+						+ Arrays.toString(parts));
+			}
+		}
+		return lengths;
+	}
+
+	private static void writeRecord(WritableByteChannel target, String record)
+			throws IOException {
+		byte[] bytes = record.getBytes("US-ASCII");
+		ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+		buffer.putInt(bytes.length).put(bytes).flip();
+		while (buffer.hasRemaining()) {
+			target.write(buffer);
+		}
+	}
+
+	/** Returns the next record, or null at the end of the archive. */
+	private static String readRecord(ReadableByteChannel source)
+			throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		if (source.read(length) == -1) {
+			return null;
+		}
+		readFully(source, length);
+		int count = length.getInt(0);
+		if (count <= 0 || count > 64 * 1024) {
+			throw new IOException("unexpected archive record length: " + count);
+		}
+		ByteBuffer record = ByteBuffer.allocate(count);
+		readFully(source, record);
+		return new String(record.array(), "US-ASCII");
+	}
+
+	private static void readFully(ReadableByteChannel source, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer) == -1) {
+				throw new EOFException("truncated archive");
+			}
+		}
+	}
+
+	/**
+	 * Moves {@code count} bytes from {@code source} to {@code target}, or
+	 * discards them if {@code target} is null.
+	 */
+	private static void transferFully(ReadableByteChannel source,
+			FileChannel target, long count) throws IOException {
+		long position = 0;
+		if (target != null) {
+			// transferFrom() can't tell a slow source from an exhausted one
+			while (position < count) {
+				long transferred = target.transferFrom(source, position, count
+						- position);
+				if (transferred == 0) {
+					break;
+				}
+				position += transferred;
+			}
+			target.position(position);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count
+				- position, IO_BUFFER_SIZE));
+		while (position < count) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count - position));
+			int read = source.read(buffer);
+			if (read == -1) {
+				throw new EOFException("truncated archive");
+			}
+			buffer.flip();
+			if (target != null) {
+				while (buffer.hasRemaining()) {
+					target.write(buffer);
+				}
+			}
+			position += read;
+		}
+	}
+
+	private void validatePartition(String partition) {
+		validateKey(partition);
+		if (partition.length() == 0 || partition.contains(",")
+				|| partition.contains(":")) {
+			throw new IllegalArgumentException("bad partition name: \""
+					+ partition + "\"");
+		}
+	}
+
+	private void validateKey(String key) {
+		if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
+			throw new IllegalArgumentException(
+					"keys must not contain spaces or newlines: \"" + key + "\"");
+		}
+	}
+
+	private static MessageDigest newContentDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			result.append(Character.forDigit((b >> 4) & 0xf, 16));
+			result.append(Character.forDigit(b & 0xf, 16));
+		}
+		return result.toString();
+	}
+
+	private static String inputStreamToString(InputStream in)
+			throws IOException {
+		return readFully(new InputStreamReader(in, UTF_8));
+	}
+
+	/**
+	 * Receives the outcome of an asynchronous operation on the thread that ran
+	 * it.
+	 */
+	public interface Callback<T> {
+		void onSuccess(T result);
+
+		/**
+		 * Called with the exception the operation threw, usually an
+		 * {@link IOException}.
+		 */
+		void onFailure(Throwable error);
+	}
+
+	/**
+	 * Runs its tasks one at a time and in order on the async executor, so the
+	 * async operations of one editor cannot overtake each other.
+	 */
+	private final class SerialExecutor implements Executor {
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		private Runnable active;
+
+		@Override
+		public synchronized void execute(final Runnable task) {
+			tasks.offer(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						scheduleNext();
+					}
+				}
+			});
+			if (active == null) {
+				scheduleNext();
+			}
+		}
+
+		private synchronized void scheduleNext() {
+			active = tasks.poll();
+			if (active != null) {
+				try {
+					asyncExecutorService.execute(active);
+				} catch (RejectedExecutionException e) {
+					// closed: run it here so that its future still completes
+					active.run();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Receives the entries that the background evictor removes to keep the
+	 * cache and its partitions within their limits, for example to move them
+	 * to a slower cache. Entries that expire, are removed or are replaced are
+	 * not reported, and neither are those trimmed by {@link #close}.
+	 */
+	public interface EvictionListener {
+		/**
+		 * Called on the cleanup thread, without the cache's lock held, after
+		 * {@code key} was evicted. {@code snapshot} still reads the evicted
+		 * values; it is closed when this method returns.
+		 */
+		void onEvicted(String key, Snapshot snapshot);
+	}
+
+	/**
+	 * A snapshot of the values for an entry. Value files are opened on first
+	 * access.
+	 */
+	public final class Snapshot implements Closeable {
+		private final Entry entry;
+		private final long sequenceNumber;
+		private final long[] lengths;
+		private final long[] checksums;
+		private final String[] codecs;
+		private final long[] rawLengths;
+		private final long expiresAt;
+		/**
+		 * The file of each value; one that was moved aside for this snapshot
+		 * once the entry's file was replaced or deleted.
+		 */
+		private final File[] files;
+		private final FileInputStream[] ins;
+		/** The streams handed out by getInputStream(), possibly wrapped. */
+		private final InputStream[] streams;
+		private boolean closed;
+		/** The files moved aside for this snapshot, or null if none were. */
+		private List<File> pinned;
+
+		private Snapshot(Entry entry, long sequenceNumber, long[] lengths,
+				long[] checksums, String[] codecs, long[] rawLengths) {
+			this.entry = entry;
+			this.sequenceNumber = sequenceNumber;
+			this.lengths = lengths;
+			this.checksums = checksums;
+			this.codecs = codecs;
+			this.rawLengths = rawLengths;
+			this.expiresAt = entry.expiresAt;
+			this.files = new File[lengths.length];
+			for (int i = 0; i < files.length; i++) {
+				files[i] = entry.getCleanFile(i);
+			}
+			this.ins = new FileInputStream[lengths.length];
+			this.streams = new InputStream[lengths.length];
+		}
+
+		/**
+		 * Returns an editor for this snapshot's entry, or null if either the
+		 * entry has changed since this snapshot was created or if another edit
+		 * is in progress.
+		 */
+		public Editor edit() throws IOException {
+			return DiskLruCache.this.edit(entry.key, sequenceNumber, null);
+		}
+
+		String getKey() {
+			return entry.key;
+		}
+
+		/** Returns the cache this snapshot was read from. */
+		DiskLruCache getCache() {
+			return DiskLruCache.this;
+		}
+
+		/**
+		 * Returns true if this snapshot's entry is still published unchanged
+		 * and no edit of it is in progress. Unlike {@link #edit} this writes
+		 * nothing to the journal.
+		 */
+		boolean isCurrent() {
+			synchronized (DiskLruCache.this) {
+				return lruEntries.get(entry.key) == entry
+						&& entry.sequenceNumber == sequenceNumber
+						&& entry.currentEditor == null;
+			}
+		}
+
+		/**
+		 * 根据索引值，返回一个文件的流 Returns the unbuffered stream with the value for
+		 * {@code index}. Encoded values are decoded; other values are returned
+		 * as a {@link FileInputStream} unless streaming verification is on.
+		 */
+		public InputStream getInputStream(int index) throws IOException {
+			FileInputStream in = open(index);
+			synchronized (this) {
+				if (streams[index] == null) {
+					InputStream stream = streamingVerification
+							&& checksums[index] != -1 ? new VerifyingInputStream(
+							index, in) : in;
+					streams[index] = decode(codecs[index], stream);
+				}
+				return streams[index];
+			}
+		}
+
+		/**
+		 * Returns the time in milliseconds when this entry expires, or 0 if it
+		 * doesn't.
+		 */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		/**
+		 * Returns the byte length of the value for {@code index}, as read from
+		 * {@link #getInputStream}.
+		 */
+		public long getLength(int index) {
+			return rawLengths[index] != -1 ? rawLengths[index] : lengths[index];
+		}
+
+		private FileInputStream open(int index) throws IOException {
+			FileInputStream in;
+			File file = file(index);
+			try {
+				in = openValue(index);
+			} catch (FileNotFoundException e) {
+				synchronized (DiskLruCache.this) {
+					// waits for a replacement that is moving the file aside
+				}
+				if (!file.equals(file(index))) {
+					in = openValue(index);
+				} else {
+					// a file that was deleted manually or whose eviction was
+					// interrupted makes the next get() a miss. Other failures,
+					// such as running out of file descriptors, leave the entry
+					// alone.
+					if (!file.exists()) {
+						dropEntry();
+					}
+					throw e;
+				}
+			}
+			if (!streamingVerification && !isVerified(index)) {
+				verify(index, in.getChannel());
+			}
+			return in;
+		}
+
+		private void dropEntry() throws IOException {
+			synchronized (DiskLruCache.this) {
+				if (journalWriter != null && lruEntries.get(entry.key) == entry
+						&& entry.sequenceNumber == sequenceNumber
+						&& entry.currentEditor == null) {
+					removeEntry(entry);
+				}
+			}
+		}
+
+		private boolean isVerified(int index) {
+			if (checksums[index] == -1) {
+				return true; // written before checksums were recorded
+			}
+			synchronized (DiskLruCache.this) {
+				return entry.sequenceNumber == sequenceNumber
+						&& entry.verified[index];
+			}
+		}
+
+		private void markVerified(int index) {
+			synchronized (DiskLruCache.this) {
+				if (entry.sequenceNumber == sequenceNumber) {
+					entry.verified[index] = true;
+				}
+			}
+		}
+
+		/**
+		 * Reads the whole value for {@code index} without moving the
+		 * channel's position and compares it with its recorded checksum.
+		 */
+		private void verify(int index, FileChannel channel) throws IOException {
+			CRC32 checksum = new CRC32();
+			ByteBuffer buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+			long position = 0;
+			int count;
+			while ((count = channel.read(buffer, position)) != -1) {
+				checksum.update(buffer.array(), 0, count);
+				position += count;
+				buffer.clear();
+			}
+			checkChecksum(index, checksum);
+		}
+
+		/**
+		 * Marks the value for {@code index} verified if {@code checksum}
+		 * matches, or else drops the entry, whose bytes rotted, and throws.
+		 */
+		private void checkChecksum(int index, CRC32 checksum)
+				throws IOException {
+			if (checksum.getValue() != checksums[index]) {
+				dropEntry();
+				throw new IOException("checksum mismatch in "
+						+ entry.getCleanFile(index));
+			}
+			markVerified(index);
+		}
+
+		private synchronized FileInputStream openValue(int index)
+				throws IOException {
+			if (closed) {
+				throw new IllegalStateException("snapshot is closed");
+			}
+			if (ins[index] == null) {
+				ins[index] = new FileInputStream(files[index]);
+			}
+			return ins[index];
+		}
+
+		private synchronized File file(int index) {
+			return files[index];
+		}
+
+		/** Returns true if this snapshot has yet to open {@code file}. */
+		private synchronized boolean needs(File file) {
+			if (closed) {
+				return false;
+			}
+			for (int i = 0; i < files.length; i++) {
+				if (ins[i] == null && files[i].equals(file)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Called with the cache lock held once {@code file} was moved to
+		 * {@code aside} for this snapshot.
+		 */
+		private synchronized void repoint(File file, File aside) {
+			for (int i = 0; i < files.length; i++) {
+				if (files[i].equals(file)) {
+					files[i] = aside;
+				}
+			}
+			if (pinned == null) {
+				pinned = new ArrayList<File>(1);
+			}
+			pinned.add(aside);
+		}
+
+		/**
+		 * Returns the channel backing the value for {@code index}. The channel
+		 * shares its position with {@link #getInputStream} and is closed with
+		 * this snapshot. Like {@link #map} and {@link #transferTo} it exposes
+		 * the stored bytes, which are still encoded if the value has a codec.
+		 */
+		public FileChannel getChannel(int index) throws IOException {
+			return open(index).getChannel();
+		}
+
+		/**
+		 * Maps the value for {@code index} into memory read-only. Mapping has a
+		 * fixed setup cost, so prefer it for large values; the mapping stays
+		 * valid after this snapshot is closed.
+		 */
+		public MappedByteBuffer map(int index) throws IOException {
+			FileChannel channel = getChannel(index);
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		/**
+		 * Writes the whole value for {@code index} to {@code target} without
+		 * copying it through the Java heap where the platform allows it. The
+		 * position of the value's stream is not changed. {@code target} must be
+		 * in blocking mode.
+		 * 
+		 * @return the number of bytes written
+		 */
+		public long transferTo(int index, WritableByteChannel target)
+				throws IOException {
+			FileChannel channel = getChannel(index);
+			long length = channel.size();
+			long position = 0;
+			while (position < length) {
+				position += channel.transferTo(position, length - position,
+						target);
+			}
+			return position;
+		}
+
+		/**
+		 * Returns the string value for {@code index}.
+		 */
+		public String getString(int index) throws IOException {
+			return inputStreamToString(getInputStream(index));
+		}
+
+		/**
+		 * Checks the bytes of a value against its checksum as they are read
+		 * and fails when the end of the value is reached.
+		 */
+		private final class VerifyingInputStream extends FilterInputStream {
+			private final int index;
+			private final CRC32 checksum = new CRC32();
+
+			private VerifyingInputStream(int index, InputStream in) {
+				super(in);
+				this.index = index;
+			}
+
+			@Override
+			public int read() throws IOException {
+				int b = in.read();
+				if (b == -1) {
+					endOfValue();
+				} else {
+					checksum.update(b);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count)
+					throws IOException {
+				int read = in.read(buffer, offset, count);
+				if (read == -1) {
+					endOfValue();
+				} else {
+					checksum.update(buffer, offset, read);
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long byteCount) throws IOException {
+				// skipped bytes must still be checksummed
+				byte[] buffer = new byte[(int) Math.min(byteCount,
+						IO_BUFFER_SIZE)];
+				long skipped = 0;
+				int read;
+				while (skipped < byteCount
+						&& (read = read(buffer, 0, (int) Math.min(
+								buffer.length, byteCount - skipped))) != -1) {
+					skipped += read;
+				}
+				return skipped;
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+
+			private void endOfValue() throws IOException {
+				checkChecksum(index, checksum);
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				for (InputStream stream : streams) {
+					closeQuietly(stream);
+				}
+				for (InputStream in : ins) {
+					closeQuietly(in);
+				}
+			}
+			List<File> unpinned = new ArrayList<File>(0);
+			synchronized (DiskLruCache.this) {
+				for (File file : files) {
+					List<Snapshot> readers = readersByFile.get(file);
+					if (readers != null && readers.remove(this)
+							&& readers.isEmpty()) {
+						readersByFile.remove(file);
+					}
+				}
+				if (pinned != null) {
+					for (File file : pinned) {
+						int holders = pinnedFiles.remove(file) - 1;
+						if (holders > 0) {
+							pinnedFiles.put(file, holders);
+						} else {
+							unpinned.add(file);
+						}
+					}
+				}
+			}
+			for (File file : unpinned) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Edits the values for an entry.
+	 */
+	public final class Editor {
 		private final Entry entry;
+		/** The checksums of the values written by this edit. */
+		private final CRC32[] checksums = new CRC32[valueCount];
+		/** The codecs and decoded lengths of the values written. */
+		private final Codec[] codecs = new Codec[valueCount];
+		private final long[] rawLengths = new long[valueCount];
+		/** The SHA-1s of the values written if deduplicating, else null. */
+		private final MessageDigest[] contentDigests = new MessageDigest[valueCount];
+		/** The streams handed out, finished before the edit completes. */
+		private final OutputStream[] streams = new OutputStream[valueCount];
+		/** The expiry time to commit, or -1 to apply the time to live. */
+		private long expiresAt = -1;
 		private boolean hasErrors;
+		/** Orders this edit's async operations; created on first use. */
+		private SerialExecutor asyncExecutor;
+		/** The values taken over from an interrupted edit, once claimed. */
+		private Partial partial;
+		private boolean partialClaimed;
 
 		private Editor(Entry entry) {
 			this.entry = entry;
@@ -854,7 +2505,8 @@ public final class DiskLruCache implements Closeable {
 				if (!entry.readable) {
 					return null;
 				}
-				return new FileInputStream(entry.getCleanFile(index));
+				return decode(entry.codecs[index], new FileInputStream(
+						entry.getCleanFile(index)));
 			}
 		}
 
@@ -880,12 +2532,165 @@ public final class DiskLruCache implements Closeable {
 				if (entry.currentEditor != this) {
 					throw new IllegalStateException();
 				}
-				//不要奇怪这里是getDirtyFile，只有在写入成功时，在是CleanFile
-				return new FaultHidingOutputStream(new FileOutputStream(
-						entry.getDirtyFile(index)));
+				Partial partial = claimPartial();
+				if (partial != null && partial.lengths[index] != 0) {
+					partial.getFile(index).delete();
+					partial.lengths[index] = 0;
+				}
+				return openStream(index, false);
+			}
+		}
+
+		/**
+		 * Returns a new unbuffered output stream that appends to the value at
+		 * {@code index} that the last interrupted edit of this entry kept, see
+		 * {@link #getPartialLength}. If no bytes were kept for {@code index},
+		 * this is the same as {@link #newOutputStream}. The appended value is
+		 * stored as it is even if a codec has been set for {@code index} since
+		 * this edit began.
+		 */
+		public OutputStream newAppendingOutputStream(int index)
+				throws IOException {
+			synchronized (DiskLruCache.this) {
+				if (entry.currentEditor != this) {
+					throw new IllegalStateException();
+				}
+				Partial partial = claimPartial();
+				if (partial == null || partial.lengths[index] == 0) {
+					return newOutputStream(index);
+				}
+				closeQuietly(streams[index]);
+				streams[index] = null;
+				File dirty = entry.getDirtyFile(index);
+				deleteIfExists(dirty);
+				if (!partial.getFile(index).renameTo(dirty)) {
+					throw new IOException("failed to rename partial value of "
+							+ entry.key);
+				}
+				partial.lengths[index] = 0;
+				return openStream(index, true);
+			}
+		}
+
+		private OutputStream openStream(int index, boolean append)
+				throws IOException {
+			//不要奇怪这里是getDirtyFile，只有在写入成功时，在是CleanFile
+			CRC32 checksum = new CRC32();
+			checksums[index] = checksum;
+			Codec codec = append ? null : DiskLruCache.this.codecs[index];
+			codecs[index] = codec;
+			rawLengths[index] = 0;
+			contentDigests[index] = deduplicating ? newContentDigest() : null;
+			File dirty = entry.getDirtyFile(index);
+			if (append) {
+				// the checksum and digest cover the whole value
+				InputStream in = new FileInputStream(dirty);
+				try {
+					byte[] buffer = new byte[IO_BUFFER_SIZE];
+					int count;
+					while ((count = in.read(buffer)) != -1) {
+						checksum.update(buffer, 0, count);
+						if (contentDigests[index] != null) {
+							contentDigests[index].update(buffer, 0, count);
+						}
+					}
+				} finally {
+					closeQuietly(in);
+				}
+			}
+			OutputStream out = new FileOutputStream(dirty, append);
+			if (contentDigests[index] != null) {
+				out = new DigestOutputStream(out, contentDigests[index]);
+			}
+			out = new CheckedOutputStream(out, checksum);
+			if (codec != null) {
+				out = codec.encode(out);
+			}
+			closeQuietly(streams[index]);
+			streams[index] = new FaultHidingOutputStream(index, out);
+			return streams[index];
+		}
+
+		/**
+		 * Returns the tag that the last interrupted edit of this entry passed
+		 * to {@link #abortKeepingPartial}, or null if it kept no values.
+		 */
+		public String getPartialTag() {
+			synchronized (DiskLruCache.this) {
+				Partial partial = claimPartial();
+				return partial != null ? partial.tag : null;
+			}
+		}
+
+		/**
+		 * Returns the number of bytes of the value at {@code index} that the
+		 * last interrupted edit of this entry kept, or 0 if it kept none.
+		 * Bytes kept for an index that has a codec when this edit first looks
+		 * at them are dropped, because encoded values can't be appended to.
+		 */
+		public long getPartialLength(int index) {
+			synchronized (DiskLruCache.this) {
+				Partial partial = claimPartial();
+				return partial != null ? partial.lengths[index] : 0;
+			}
+		}
+
+		/**
+		 * Returns an unbuffered input stream to read the bytes of the value at
+		 * {@code index} that the last interrupted edit of this entry kept, or
+		 * null if it kept none. Call this before
+		 * {@link #newAppendingOutputStream}.
+		 */
+		public InputStream newPartialInputStream(int index) throws IOException {
+			synchronized (DiskLruCache.this) {
+				Partial partial = claimPartial();
+				if (partial == null || partial.lengths[index] == 0) {
+					return null;
+				}
+				return new FileInputStream(partial.getFile(index));
 			}
 		}
 
+		/**
+		 * Takes the values kept for this entry over from the cache, so that
+		 * they are deleted when this edit completes unless it keeps them.
+		 */
+		private Partial claimPartial() {
+			if (entry.currentEditor != this) {
+				throw new IllegalStateException();
+			}
+			if (!partialClaimed) {
+				partialClaimed = true;
+				partial = partials.remove(entry.key);
+				if (partial != null) {
+					partialSize -= partial.size();
+					for (int i = 0; i < valueCount; i++) {
+						if (partial.lengths[i] != 0
+								&& DiskLruCache.this.codecs[i] != null) {
+							partial.getFile(i).delete();
+							partial.lengths[i] = 0;
+						}
+					}
+					if (partial.size() == 0) {
+						partial = null;
+					}
+				}
+			}
+			return partial;
+		}
+
+		/**
+		 * Sets the time in milliseconds after which the committed entry reads
+		 * as a miss, or 0 to keep it until it is evicted. If this is not called
+		 * the cache's {@link DiskLruCache#setTimeToLive time to live} applies.
+		 */
+		public void setExpiresAt(long expiresAtMillis) {
+			if (expiresAtMillis < 0) {
+				throw new IllegalArgumentException("expiresAt < 0");
+			}
+			this.expiresAt = expiresAtMillis;
+		}
+
 		/**
 		 * Sets the value at {@code index} to {@code value}.
 		 */
@@ -899,12 +2704,80 @@ public final class DiskLruCache implements Closeable {
 			}
 		}
 
+		/**
+		 * Appends the remaining bytes of {@code source} to the value at
+		 * {@code index} on a background thread. The bytes go to the stream
+		 * that {@link #newOutputStream} last returned for {@code index}, or to
+		 * a new one. The caller must not touch {@code source} until the
+		 * future is done. Async writes and {@link #commitAsync} run in the
+		 * order they were called.
+		 * 
+		 * @param callback
+		 *            notified on the background thread, or null
+		 */
+		public Future<Void> writeAsync(final int index,
+				final ByteBuffer source, Callback<Void> callback) {
+			return submit(asyncExecutor(), new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					OutputStream out;
+					synchronized (DiskLruCache.this) {
+						out = streams[index];
+					}
+					if (out == null) {
+						out = newOutputStream(index);
+					}
+					if (source.hasArray()) {
+						out.write(source.array(), source.arrayOffset()
+								+ source.position(), source.remaining());
+						source.position(source.limit());
+					} else {
+						byte[] buffer = new byte[Math.min(
+								source.remaining(), IO_BUFFER_SIZE)];
+						while (source.hasRemaining()) {
+							int count = Math.min(buffer.length,
+									source.remaining());
+							source.get(buffer, 0, count);
+							out.write(buffer, 0, count);
+						}
+					}
+					return null;
+				}
+			}, callback);
+		}
+
+		/**
+		 * Commits this edit on a background thread once its pending async
+		 * writes are done.
+		 * 
+		 * @param callback
+		 *            notified on the background thread, or null
+		 */
+		public Future<Void> commitAsync(Callback<Void> callback) {
+			return submit(asyncExecutor(), new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					commit();
+					return null;
+				}
+			}, callback);
+		}
+
+		private synchronized SerialExecutor asyncExecutor() {
+			if (asyncExecutor == null) {
+				asyncExecutor = new SerialExecutor();
+			}
+			return asyncExecutor;
+		}
+
 		/**
 		 * Commits this edit so it is visible to readers. This releases the edit
 		 * lock so another edit may be started on the same key.
 		 * 必须调用这个提交的方法，才能真正的将图片缓存到文件中去，提交之后，会释放edit的锁
 		 */
 		public void commit() throws IOException {
+			// encoders may still buffer bytes that the caller never flushed
+			finishStreams();
 			if (hasErrors) {
 				completeEdit(this, false);
 				remove(entry.key); // the previous entry is stale
@@ -919,18 +2792,75 @@ public final class DiskLruCache implements Closeable {
 		 * started on the same key.
 		 */
 		public void abort() throws IOException {
+			finishStreams();
 			completeEdit(this, false);
 		}
 
+		/**
+		 * Aborts this edit like {@link #abort}, but keeps the bytes written so
+		 * far for the next edit of this entry to append to, for example to
+		 * resume an interrupted download. {@code tag} identifies the version of
+		 * the content, such as an HTTP validator; values that an earlier
+		 * interrupted edit kept and this one didn't overwrite are kept only if
+		 * it passed the same tag. Nothing is kept if writing failed, or for
+		 * values with a codec. Kept values don't survive closing the cache.
+		 */
+		public void abortKeepingPartial(String tag) throws IOException {
+			if (tag == null) {
+				throw new NullPointerException("tag == null");
+			}
+			finishStreams();
+			synchronized (DiskLruCache.this) {
+				if (entry.currentEditor != this) {
+					throw new IllegalStateException();
+				}
+				claimPartial();
+				Partial kept = new Partial(entry.key, tag);
+				for (int i = 0; i < valueCount && !hasErrors; i++) {
+					File dirty = entry.getDirtyFile(i);
+					if (dirty.exists() && codecs[i] == null) {
+						long length = dirty.length();
+						if (length != 0 && dirty.renameTo(kept.getFile(i))) {
+							if (partial != null) {
+								partial.lengths[i] = 0; // replaced by the rename
+							}
+							kept.lengths[i] = length;
+						}
+					} else if (partial != null && partial.lengths[i] != 0
+							&& tag.equals(partial.tag)) {
+						kept.lengths[i] = partial.lengths[i];
+						partial.lengths[i] = 0;
+					}
+				}
+				completeEdit(this, false);
+				if (kept.size() != 0) {
+					keepPartial(kept);
+				}
+			}
+		}
+
+		private void finishStreams() {
+			for (int i = 0; i < valueCount; i++) {
+				if (streams[i] != null) {
+					closeQuietly(streams[i]);
+					streams[i] = null;
+				}
+			}
+		}
+
 		private class FaultHidingOutputStream extends FilterOutputStream {
-			private FaultHidingOutputStream(OutputStream out) {
+			private final int index;
+
+			private FaultHidingOutputStream(int index, OutputStream out) {
 				super(out);
+				this.index = index;
 			}
 
 			@Override
 			public void write(int oneByte) {
 				try {
 					out.write(oneByte);
+					rawLengths[index]++;
 				} catch (IOException e) {
 					hasErrors = true;
 				}
@@ -940,6 +2870,7 @@ public final class DiskLruCache implements Closeable {
 			public void write(byte[] buffer, int offset, int length) {
 				try {
 					out.write(buffer, offset, length);
+					rawLengths[index] += length;
 				} catch (IOException e) {
 					hasErrors = true;
 				}
@@ -965,15 +2896,153 @@ public final class DiskLruCache implements Closeable {
 		}
 	}
 
+	/**
+	 * The values that an interrupted edit wrote before it was aborted with
+	 * {@link Editor#abortKeepingPartial}.
+	 */
+	private final class Partial {
+		final String key;
+		final String tag;
+		/** The length of each kept value, or 0 if it was not kept. */
+		final long[] lengths = new long[valueCount];
+
+		Partial(String key, String tag) {
+			this.key = key;
+			this.tag = tag;
+		}
+
+		File getFile(int i) {
+			return new File(directory, key + "." + i + PARTIAL_SUFFIX);
+		}
+
+		long size() {
+			long size = 0;
+			for (long length : lengths) {
+				size += length;
+			}
+			return size;
+		}
+
+		void delete() {
+			for (int i = 0; i < valueCount; i++) {
+				if (lengths[i] != 0) {
+					getFile(i).delete();
+					lengths[i] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A group of entries with an optional quota of its own and its own
+	 * approximate LRU order.
+	 */
+	private final class Partition {
+		private final String name;
+
+		/** This partition's own quota in bytes, or -1 if it has none. */
+		private long quota = -1;
+
+		/** The bytes stored by this partition's entries. */
+		private long size;
+
+		/** True while this partition drains to its low watermark. */
+		private boolean draining;
+
+		/**
+		 * The entries of this partition in insertion order, used as a CLOCK
+		 * ring whose head is the clock hand. A hit only sets
+		 * {@link Entry#referenced} instead of relinking the entry, and
+		 * eviction sweeps the hand giving referenced entries a second chance.
+		 */
+		private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+				0, 0.75f, false);
+
+		private Partition(String name) {
+			this.name = name;
+		}
+
+		private long maxSize() {
+			return quota != -1 ? quota : maxSize;
+		}
+
+		/**
+		 * Sweeps the clock hand until it points at an entry that has not been
+		 * referenced since the hand last passed it. Referenced entries have
+		 * their bit cleared and are moved behind the hand. Returns null if
+		 * every entry is currently being edited.
+		 */
+		private Entry nextEvictionCandidate() {
+			// two revolutions clear every reference bit
+			int budget = 2 * entries.size();
+			while (budget-- > 0) {
+				Entry entry = entries.values().iterator().next();
+				if (!entry.referenced && entry.currentEditor == null) {
+					return entry;
+				}
+				entry.referenced = false;
+				entries.remove(entry.key);
+				entries.put(entry.key, entry);
+			}
+			return null;
+		}
+
+		/**
+		 * Returns the entry that {@link #nextEvictionCandidate} would return
+		 * without moving the clock hand or clearing any reference bits.
+		 */
+		private Entry peekEvictionCandidate() {
+			// the sweep settles on the first unreferenced entry, or else on the
+			// first entry of its second revolution
+			Entry firstIdle = null;
+			for (Entry entry : entries.values()) {
+				if (entry.currentEditor != null) {
+					continue;
+				}
+				if (!entry.referenced) {
+					return entry;
+				}
+				if (firstIdle == null) {
+					firstIdle = entry;
+				}
+			}
+			return firstIdle;
+		}
+	}
+
 	private final class Entry {
 		private final String key;
 
+		/** The partition whose quota and clock ring this entry is in. */
+		private Partition partition;
+
 		/** Lengths of this entry's files. */
 		private final long[] lengths;
 
+		/** CRC32s of this entry's files, or -1 where unknown. */
+		private final long[] checksums;
+
+		/** True for values that matched their checksum since published. */
+		private final boolean[] verified;
+
+		/** Codec names of this entry's values, or null where not encoded. */
+		private final String[] codecs;
+
+		/** Decoded lengths of encoded values, or -1 where not encoded. */
+		private final long[] rawLengths;
+
+		/** SHA-1s of the values stored in shared blobs, or null where not. */
+		private final String[] contentDigests;
+
+		/** The time in milliseconds when this entry expires, or 0. */
+		private long expiresAt;
+
 		/** True if this entry has ever been published */
 		private boolean readable;
 
+		/** CLOCK reference bit, set on every read and cleared by the hand. */
+		private boolean referenced;
+
 		/** The ongoing edit or null if this entry is not being edited. */
 		private Editor currentEditor;
 
@@ -983,9 +3052,17 @@ public final class DiskLruCache implements Closeable {
 		 */
 		private long sequenceNumber;
 
-		private Entry(String key) {
+		private Entry(String key, Partition partition) {
 			this.key = key;
+			this.partition = partition;
 			this.lengths = new long[valueCount];
+			this.checksums = new long[valueCount];
+			Arrays.fill(checksums, -1);
+			this.verified = new boolean[valueCount];
+			this.codecs = new String[valueCount];
+			this.rawLengths = new long[valueCount];
+			Arrays.fill(rawLengths, -1);
+			this.contentDigests = new String[valueCount];
 		}
 
 		public String getLengths() throws IOException {
@@ -1013,17 +3090,157 @@ public final class DiskLruCache implements Closeable {
 			}
 		}
 
+		/**
+		 * Returns the metadata to append to this entry's CLEAN line, each
+		 * item preceded by a space.
+		 */
+		public String getMetadata() {
+			StringBuilder result = new StringBuilder();
+			String[] checksumValues = new String[valueCount];
+			String[] rawLengthValues = new String[valueCount];
+			for (int i = 0; i < valueCount; i++) {
+				if (checksums[i] != -1) {
+					checksumValues[i] = Long.toHexString(checksums[i]);
+				}
+				if (rawLengths[i] != -1) {
+					rawLengthValues[i] = Long.toString(rawLengths[i]);
+				}
+			}
+			appendMetadata(result, CHECKSUM, checksumValues);
+			appendMetadata(result, CODEC, codecs);
+			appendMetadata(result, RAW_LENGTH, rawLengthValues);
+			appendMetadata(result, CONTENT_DIGEST, contentDigests);
+			if (expiresAt != 0) {
+				result.append(' ').append(EXPIRES).append(':')
+						.append(expiresAt);
+			}
+			if (partition != defaultPartition) {
+				result.append(' ').append(PARTITION).append(':')
+						.append(partition.name);
+			}
+			return result.toString();
+		}
+
+		/** Moves this entry to the clock ring of {@code target}. */
+		private void moveTo(Partition target) {
+			partition.entries.remove(key);
+			partition = target;
+			target.entries.put(key, this);
+		}
+
+		private boolean isExpired(long now) {
+			return expiresAt != 0 && now >= expiresAt;
+		}
+
+		/**
+		 * Appends " name:v0,v1" with unknown values as "-", or nothing if no
+		 * value is known.
+		 */
+		private void appendMetadata(StringBuilder result, String name,
+				String[] values) {
+			boolean known = false;
+			for (String value : values) {
+				known |= value != null;
+			}
+			if (!known) {
+				return;
+			}
+			result.append(' ').append(name).append(':');
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					result.append(',');
+				}
+				result.append(values[i] != null ? values[i] : UNKNOWN);
+			}
+		}
+
+		/**
+		 * Set metadata from tokens like "crc:1c291ca3,-". Unknown names are
+		 * ignored.
+		 */
+		private void setMetadata(String[] tokens) throws IOException {
+			// a CLEAN line replaces everything that earlier lines recorded
+			Arrays.fill(checksums, -1);
+			Arrays.fill(codecs, null);
+			Arrays.fill(rawLengths, -1);
+			Arrays.fill(contentDigests, null);
+			expiresAt = 0;
+			Partition target = defaultPartition;
+			for (String token : tokens) {
+				int colon = token.indexOf(':');
+				if (colon == -1) {
+					throw invalidLengths(tokens);
+				}
+				String name = token.substring(0, colon);
+				if (name.equals(PARTITION)) {
+					target = partition(token.substring(colon + 1));
+					continue;
+				}
+				if (name.equals(EXPIRES)) {
+					try {
+						expiresAt = Long.parseLong(token.substring(colon + 1));
+					} catch (NumberFormatException e) {
+						throw invalidLengths(tokens);
+					}
+					continue;
+				}
+				if (!name.equals(CHECKSUM) && !name.equals(CODEC)
+						&& !name.equals(CONTENT_DIGEST)
+						&& !name.equals(RAW_LENGTH)) {
+					// written by a newer version; its shape is unknown
+					continue;
+				}
+				String[] values = token.substring(colon + 1).split(",");
+				if (values.length != valueCount) {
+					throw invalidLengths(tokens);
+				}
+				try {
+					for (int i = 0; i < valueCount; i++) {
+						boolean known = !values[i].equals(UNKNOWN);
+						if (name.equals(CHECKSUM)) {
+							checksums[i] = known ? Long.parseLong(values[i], 16)
+									: -1;
+						} else if (name.equals(CODEC)) {
+							codecs[i] = known ? values[i] : null;
+						} else if (name.equals(CONTENT_DIGEST)) {
+							contentDigests[i] = known ? values[i] : null;
+						} else if (name.equals(RAW_LENGTH)) {
+							rawLengths[i] = known ? Long.parseLong(values[i])
+									: -1;
+						}
+					}
+				} catch (NumberFormatException e) {
+					throw invalidLengths(tokens);
+				}
+			}
+			if (target != partition) {
+				moveTo(target);
+			}
+		}
+
 		private IOException invalidLengths(String[] strings) throws IOException {
 			throw new IOException("unexpected journal line: "
 					+ Arrays.toString(strings));
 		}
 
 		public File getCleanFile(int i) {
+			if (contentDigests[i] != null) {
+				return new File(directory, contentDigests[i] + BLOB_SUFFIX);
+			}
 			return new File(directory, key + "." + i);
 		}
 
 		public File getDirtyFile(int i) {
 			return new File(directory, key + "." + i + ".tmp");
 		}
+
+		/**
+		 * Returns the name an evicted value is renamed to until it is deleted.
+		 * The sequence number keeps it apart from later evictions of the key.
+		 */
+		public File getTrashFile(int i) {
+			return new File(directory, key + "." + i + "." + sequenceNumber
+					+ TRASH_SUFFIX);
+		}
 	}
 }
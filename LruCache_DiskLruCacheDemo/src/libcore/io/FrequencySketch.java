@@ -0,0 +1,111 @@
+package libcore.io;
+
+/**
+ * A count-min sketch of how often keys were requested recently, as used by
+ * TinyLFU admission. Each key has a 4 bit counter in each of four rows, so the
+ * sketch costs half a byte per row and counted key. Its estimate is the
+ * smallest of the key's counters. All counters are halved once the number of
+ * increments reaches ten times the capacity, so that old popularity fades.
+ *
+ * <p>
+ * This class is not thread safe.
+ */
+final class FrequencySketch {
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	/** Clears the high bit of every counter after a shift right. */
+	private static final long RESET_MASK = 0x7777777777777777L;
+	/** Selects the low bit of every counter. */
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	private long[] table;
+	private int tableMask;
+	private int sampleSize;
+	private int additions;
+
+	FrequencySketch(int capacity) {
+		ensureCapacity(capacity);
+	}
+
+	/**
+	 * Grows the sketch to count about {@code capacity} keys accurately. The
+	 * counts collected so far are kept: a key's slot in the larger table is
+	 * its old slot or that plus the old length, so both halves start as
+	 * copies of the old table and every key keeps its estimate.
+	 */
+	void ensureCapacity(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		if (table != null && table.length >= size) {
+			return;
+		}
+		long[] grown = new long[size];
+		if (table != null) {
+			for (int i = 0; i < size; i += table.length) {
+				System.arraycopy(table, 0, grown, i, table.length);
+			}
+		}
+		table = grown;
+		tableMask = size - 1;
+		sampleSize = 10 * size;
+	}
+
+	/** Returns the estimated number of recent requests for {@code key}, 0..15. */
+	int frequency(String key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/** Counts a request for {@code key}. */
+	void increment(String key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if (added && ++additions == sampleSize) {
+			reset();
+		}
+	}
+
+	/** Increments the counter {@code j} of {@code table[i]} unless it is full. */
+	private boolean incrementAt(int i, int j) {
+		int offset = j << 2;
+		long mask = 0xfL << offset;
+		if ((table[i] & mask) != mask) {
+			table[i] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	/** Halves every counter. */
+	private void reset() {
+		int odd = 0;
+		for (int i = 0; i < table.length; i++) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions = (additions - (odd >>> 2)) >>> 1;
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+
+	/** Spreads the bits of a weak hash code such as a String's. */
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
@@ -0,0 +1,140 @@
+package libcore.io;
+
+import java.util.Arrays;
+
+/**
+ * Block compression in the format of liblzf: a run of literals is a control
+ * byte {@code 000LLLLL} followed by L + 1 bytes, and a back reference is a
+ * control byte {@code LLLooooo}, an extra length byte when L is 7, and the low
+ * offset byte. References reach back at most 8 KiB and copy 3 to 264 bytes.
+ *
+ * <p>
+ * Streams produced by {@link LzfOutputStream} are a sequence of blocks, each
+ * starting with a one byte type and the big-endian unsigned 16 bit length of
+ * its decoded bytes. A {@link #BLOCK_COMPRESSED} block then carries the 16 bit
+ * length of its compressed bytes; a {@link #BLOCK_STORED} block does not.
+ */
+final class Lzf {
+	static final int BLOCK_SIZE = 32 * 1024;
+	static final int BLOCK_STORED = 0;
+	static final int BLOCK_COMPRESSED = 1;
+
+	private static final int HASH_BITS = 14;
+	private static final int MAX_LITERAL = 32;
+	private static final int MAX_OFFSET = 8 * 1024;
+	private static final int MAX_REFERENCE = 264;
+
+	private Lzf() {
+	}
+
+	/** Returns the output buffer size that suffices for {@code length} bytes. */
+	static int maxCompressedLength(int length) {
+		return length + (length + MAX_LITERAL - 1) / MAX_LITERAL;
+	}
+
+	/**
+	 * Compresses {@code length} bytes of {@code in} into {@code out}, which
+	 * must hold {@link #maxCompressedLength} bytes.
+	 *
+	 * @param table
+	 *            scratch space of {@code 1 << 14} ints, reused across calls
+	 * @return the number of bytes written to {@code out}
+	 */
+	static int compress(byte[] in, int length, byte[] out, int[] table) {
+		// table holds position + 1 so that zero means empty
+		Arrays.fill(table, 0);
+		int ip = 0;
+		int op = 0;
+		int literalStart = 0;
+		while (ip + 2 < length) {
+			int hash = hash(in, ip);
+			int reference = table[hash] - 1;
+			table[hash] = ip + 1;
+			int offset = ip - reference - 1;
+			if (reference >= 0 && offset < MAX_OFFSET
+					&& in[reference] == in[ip]
+					&& in[reference + 1] == in[ip + 1]
+					&& in[reference + 2] == in[ip + 2]) {
+				int maxLength = Math.min(MAX_REFERENCE, length - ip);
+				int matchLength = 3;
+				while (matchLength < maxLength
+						&& in[reference + matchLength] == in[ip + matchLength]) {
+					matchLength++;
+				}
+				op = writeLiterals(in, literalStart, ip, out, op);
+				int encodedLength = matchLength - 2;
+				if (encodedLength < 7) {
+					out[op++] = (byte) ((encodedLength << 5) | (offset >> 8));
+				} else {
+					out[op++] = (byte) ((7 << 5) | (offset >> 8));
+					out[op++] = (byte) (encodedLength - 7);
+				}
+				out[op++] = (byte) offset;
+				ip += matchLength;
+				literalStart = ip;
+			} else {
+				ip++;
+			}
+		}
+		return writeLiterals(in, literalStart, length, out, op);
+	}
+
+	/**
+	 * Decompresses {@code length} bytes of {@code in} into {@code out}.
+	 *
+	 * @return the number of bytes written to {@code out}
+	 * @throws IllegalArgumentException
+	 *             if {@code in} is not valid compressed data
+	 */
+	static int decompress(byte[] in, int length, byte[] out) {
+		int ip = 0;
+		int op = 0;
+		try {
+			while (ip < length) {
+				int control = in[ip++] & 0xff;
+				if (control < MAX_LITERAL) {
+					int count = control + 1;
+					System.arraycopy(in, ip, out, op, count);
+					ip += count;
+					op += count;
+				} else {
+					int count = control >> 5;
+					if (count == 7) {
+						count += in[ip++] & 0xff;
+					}
+					count += 2;
+					int reference = op - ((control & 0x1f) << 8)
+							- (in[ip++] & 0xff) - 1;
+					if (reference < 0) {
+						throw new IllegalArgumentException("bad reference");
+					}
+					// byte by byte: the reference may overlap the output
+					for (int i = 0; i < count; i++) {
+						out[op++] = out[reference++];
+					}
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("truncated or overlong block");
+		}
+		return op;
+	}
+
+	private static int hash(byte[] in, int i) {
+		int v = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8)
+				| (in[i + 2] & 0xff);
+		return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+	private static int writeLiterals(byte[] in, int start, int end, byte[] out,
+			int op) {
+		while (start < end) {
+			int count = Math.min(MAX_LITERAL, end - start);
+			out[op++] = (byte) (count - 1);
+			System.arraycopy(in, start, out, op, count);
+			start += count;
+			op += count;
+		}
+		return op;
+	}
+}
@@ -0,0 +1,123 @@
+package libcore.io;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the blocks written by {@link LzfOutputStream}.
+ */
+final class LzfInputStream extends FilterInputStream {
+	private final byte[] buffer = new byte[Lzf.BLOCK_SIZE];
+	private final byte[] compressed = new byte[Lzf
+			.maxCompressedLength(Lzf.BLOCK_SIZE)];
+	private int position;
+	private int count;
+
+	LzfInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position == count && !readBlock()) {
+			return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (position == count && !readBlock()) {
+			return -1;
+		}
+		int chunk = Math.min(length, count - position);
+		System.arraycopy(buffer, position, b, offset, chunk);
+		position += chunk;
+		return chunk;
+	}
+
+	@Override
+	public long skip(long byteCount) throws IOException {
+		long skipped = 0;
+		while (skipped < byteCount) {
+			if (position == count && !readBlock()) {
+				break;
+			}
+			int chunk = (int) Math.min(byteCount - skipped, count - position);
+			position += chunk;
+			skipped += chunk;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return count - position;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Decodes the next block into the buffer. Returns false at the end of the
+	 * stream.
+	 */
+	private boolean readBlock() throws IOException {
+		int type = in.read();
+		if (type == -1) {
+			return false;
+		}
+		int length = readShort();
+		if (type == Lzf.BLOCK_STORED) {
+			readFully(buffer, length);
+		} else if (type == Lzf.BLOCK_COMPRESSED) {
+			int compressedLength = readShort();
+			if (compressedLength > compressed.length) {
+				throw new IOException("corrupt lzf block");
+			}
+			readFully(compressed, compressedLength);
+			try {
+				if (Lzf.decompress(compressed, compressedLength, buffer) != length) {
+					throw new IOException("corrupt lzf block");
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IOException("corrupt lzf block: " + e.getMessage());
+			}
+		} else {
+			throw new IOException("unexpected lzf block type " + type);
+		}
+		position = 0;
+		count = length;
+		return true;
+	}
+
+	private int readShort() throws IOException {
+		int high = in.read();
+		int low = in.read();
+		if ((high | low) < 0) {
+			throw new EOFException();
+		}
+		return (high << 8) | low;
+	}
+
+	private void readFully(byte[] b, int length) throws IOException {
+		if (length > b.length) {
+			throw new IOException("corrupt lzf block");
+		}
+		int offset = 0;
+		while (offset < length) {
+			int read = in.read(b, offset, length - offset);
+			if (read == -1) {
+				throw new EOFException();
+			}
+			offset += read;
+		}
+	}
+}
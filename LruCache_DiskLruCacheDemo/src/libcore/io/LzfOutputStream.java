@@ -0,0 +1,86 @@
+package libcore.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffers bytes into blocks of {@link Lzf#BLOCK_SIZE} and writes each one
+ * compressed, or stored when compression does not pay off.
+ */
+final class LzfOutputStream extends FilterOutputStream {
+	private final byte[] buffer = new byte[Lzf.BLOCK_SIZE];
+	private final byte[] compressed = new byte[Lzf
+			.maxCompressedLength(Lzf.BLOCK_SIZE)];
+	private final int[] table = new int[1 << 14];
+	private int count;
+	private boolean closed;
+
+	LzfOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		if (count == buffer.length) {
+			writeBlock();
+		}
+		buffer[count++] = (byte) oneByte;
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (count == buffer.length) {
+				writeBlock();
+			}
+			int chunk = Math.min(length, buffer.length - count);
+			System.arraycopy(b, offset, buffer, count, chunk);
+			count += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeBlock();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			writeBlock();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		int length = Lzf.compress(buffer, count, compressed, table);
+		if (length < count) {
+			out.write(Lzf.BLOCK_COMPRESSED);
+			writeShort(count);
+			writeShort(length);
+			out.write(compressed, 0, length);
+		} else {
+			out.write(Lzf.BLOCK_STORED);
+			writeShort(count);
+			out.write(buffer, 0, count);
+		}
+		count = 0;
+	}
+
+	private void writeShort(int value) throws IOException {
+		out.write(value >>> 8);
+		out.write(value);
+	}
+}
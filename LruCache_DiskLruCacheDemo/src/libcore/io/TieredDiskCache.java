@@ -0,0 +1,294 @@
+package libcore.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import libcore.io.DiskLruCache.Editor;
+import libcore.io.DiskLruCache.Snapshot;
+
+/**
+ * Combines a small cache on a fast medium, such as internal storage, with a
+ * large cache on a bulk medium, such as external storage.
+ *
+ * <p>
+ * New values are written to the bulk tier. A value that is read from the bulk
+ * tier {@link #PROMOTION_FREQUENCY} times within a short while is copied to the
+ * fast tier in the background, and later reads are served from there. When the
+ * fast tier evicts an entry to make room, it is copied back to the bulk tier
+ * unless the bulk tier still holds it. Editing an entry drops its fast copy, so
+ * both tiers never serve different values for a key.
+ *
+ * <p>
+ * Both tiers are ordinary {@link DiskLruCache} instances and can be configured
+ * through {@link #getFastTier} and {@link #getBulkTier}, except for the fast
+ * tier's eviction listener which this class owns. Edits must go through
+ * {@link #edit(String)} or {@link #edit(Snapshot)} rather than
+ * {@link Snapshot#edit}, which would only change one tier.
+ */
+public final class TieredDiskCache implements Closeable {
+	/** The number of recent bulk hits that get an entry promoted. */
+	private static final int PROMOTION_FREQUENCY = 2;
+
+	private final DiskLruCache fast;
+	private final DiskLruCache bulk;
+	private final int valueCount;
+
+	/** Recent bulk hits per key. Guarded by this. */
+	private final FrequencySketch bulkHits = new FrequencySketch(1024);
+	/** Keys with a promotion queued or running. Guarded by this. */
+	private final Set<String> promoting = new HashSet<String>();
+
+	/** This cache uses a single background thread to copy promoted entries. */
+	private final ExecutorService promotionExecutorService = new ThreadPoolExecutor(
+			0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+	private TieredDiskCache(DiskLruCache fast, DiskLruCache bulk, int valueCount) {
+		this.fast = fast;
+		this.bulk = bulk;
+		this.valueCount = valueCount;
+		fast.setEvictionListener(new DiskLruCache.EvictionListener() {
+			@Override
+			public void onEvicted(String key, Snapshot snapshot) {
+				demote(key, snapshot);
+			}
+		});
+	}
+
+	/**
+	 * Opens the tiers in {@code fastDirectory} and {@code bulkDirectory},
+	 * creating them if they don't exist.
+	 *
+	 * @throws IOException
+	 *             if reading or writing either cache directory fails
+	 */
+	public static TieredDiskCache open(File fastDirectory, long fastMaxSize,
+			File bulkDirectory, long bulkMaxSize, int appVersion, int valueCount)
+			throws IOException {
+		DiskLruCache fast = DiskLruCache.open(fastDirectory, appVersion,
+				valueCount, fastMaxSize);
+		DiskLruCache bulk;
+		try {
+			bulk = DiskLruCache.open(bulkDirectory, appVersion, valueCount,
+					bulkMaxSize);
+		} catch (IOException e) {
+			fast.close();
+			throw e;
+		}
+		return new TieredDiskCache(fast, bulk, valueCount);
+	}
+
+	public DiskLruCache getFastTier() {
+		return fast;
+	}
+
+	public DiskLruCache getBulkTier() {
+		return bulk;
+	}
+
+	/**
+	 * Returns a snapshot of the entry named {@code key} from the fast tier, or
+	 * else from the bulk tier, or null if neither has it.
+	 */
+	public Snapshot get(String key) throws IOException {
+		Snapshot snapshot = fast.get(key);
+		if (snapshot != null) {
+			return snapshot;
+		}
+		snapshot = bulk.get(key);
+		if (snapshot != null && shouldPromote(key)) {
+			final String promoted = key;
+			promotionExecutorService.execute(new Runnable() {
+				@Override
+				public void run() {
+					promote(promoted);
+				}
+			});
+		}
+		return snapshot;
+	}
+
+	private synchronized boolean shouldPromote(String key) {
+		bulkHits.increment(key);
+		return bulkHits.frequency(key) >= PROMOTION_FREQUENCY
+				&& promoting.add(key);
+	}
+
+	/**
+	 * Returns an editor for the entry named {@code key} in the bulk tier, or
+	 * null if another edit is in progress.
+	 */
+	public synchronized Editor edit(String key) throws IOException {
+		Editor editor = bulk.edit(key);
+		if (editor != null) {
+			// a promotion that is copying the old value notices the edit and
+			// discards its copy, see promote()
+			fast.remove(key);
+		}
+		return editor;
+	}
+
+	/**
+	 * Returns an editor for the entry {@code snapshot} was read from, or null
+	 * if that entry has changed since the snapshot was created or if another
+	 * edit is in progress. Like {@link #edit(String)} this edits the bulk tier
+	 * and drops the fast copy; values the edit doesn't set keep their
+	 * contents. An entry that only the fast tier still holds can't be edited
+	 * this way, and null is returned for it.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the snapshot was read from neither tier
+	 */
+	public synchronized Editor edit(Snapshot snapshot) throws IOException {
+		String key = snapshot.getKey();
+		Editor editor;
+		if (snapshot.getCache() == bulk) {
+			editor = snapshot.edit();
+		} else if (snapshot.getCache() == fast) {
+			// edits drop the fast copy, so while it is current the bulk
+			// entry, if any, holds the same value
+			editor = snapshot.isCurrent() ? bulk.editIfPresent(key) : null;
+		} else {
+			throw new IllegalArgumentException("snapshot is not from this cache");
+		}
+		if (editor != null) {
+			fast.remove(key);
+		}
+		return editor;
+	}
+
+	/**
+	 * Drops the entry for {@code key} from both tiers. Returns true if either
+	 * tier had it.
+	 */
+	public synchronized boolean remove(String key) throws IOException {
+		boolean removed = fast.remove(key);
+		return bulk.remove(key) || removed;
+	}
+
+	/**
+	 * Copies the bulk tier's entry for {@code key} to the fast tier. The copy
+	 * is only published if the bulk entry did not change while it was made.
+	 */
+	private void promote(String key) {
+		Snapshot source = null;
+		Editor editor = null;
+		try {
+			source = bulk.get(key);
+			if (source == null) {
+				return;
+			}
+			editor = fast.edit(key);
+			if (editor == null) {
+				return;
+			}
+			copy(source, editor);
+			// edit() and remove() take this lock too, so the bulk entry can't
+			// change between the check and the commit
+			synchronized (this) {
+				if (source.isCurrent()) {
+					editor.commit();
+				} else {
+					editor.abort(); // edited since we read it
+				}
+			}
+			editor = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (IllegalStateException e) {
+			// closed
+		} finally {
+			abortQuietly(editor);
+			DiskLruCache.closeQuietly(source);
+			synchronized (this) {
+				promoting.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Copies an entry evicted from the fast tier back to the bulk tier, unless
+	 * the bulk tier still has it.
+	 */
+	private void demote(String key, Snapshot snapshot) {
+		Editor editor = null;
+		try {
+			synchronized (this) {
+				if (bulk.contains(key)) {
+					return;
+				}
+				editor = bulk.edit(key);
+			}
+			if (editor == null) {
+				return;
+			}
+			copy(snapshot, editor);
+			editor.commit();
+			editor = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (IllegalStateException e) {
+			// closed
+		} finally {
+			abortQuietly(editor);
+		}
+	}
+
+	private void copy(Snapshot source, Editor editor) throws IOException {
+		editor.setExpiresAt(source.getExpiresAt());
+		byte[] buffer = new byte[8192];
+		for (int i = 0; i < valueCount; i++) {
+			InputStream in = source.getInputStream(i);
+			try {
+				OutputStream out = editor.newOutputStream(i);
+				try {
+					int count;
+					while ((count = in.read(buffer)) != -1) {
+						out.write(buffer, 0, count);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	private static void abortQuietly(Editor editor) {
+		if (editor != null) {
+			try {
+				editor.abort();
+			} catch (IOException ignored) {
+			} catch (IllegalStateException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Force buffered operations of both tiers to the filesystem.
+	 */
+	public void flush() throws IOException {
+		fast.flush();
+		bulk.flush();
+	}
+
+	/**
+	 * Closes both tiers. Stored values will remain on the filesystem.
+	 */
+	public void close() throws IOException {
+		try {
+			fast.close();
+		} finally {
+			bulk.close();
+		}
+	}
+}